@@ -18,9 +18,11 @@ package org.terasology.rails.blocks;
 
 import org.terasology.entitySystem.Component;
 import org.terasology.network.Replicate;
-import org.terasology.world.block.ForceBlockActive;
 
-@ForceBlockActive
+/**
+ * The kind of rail a block is. Rail blocks are not kept active for it: look the type up from the block with
+ * {@link RailsUpdatesFamily#getRailType}.
+ */
 public class ConnectsToRailsComponent implements Component {
     public enum RAILS {
         PLANE, CURVE, TEE, TEE_INVERSED, SLOPE, INTERSECTION
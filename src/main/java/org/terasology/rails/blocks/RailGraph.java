@@ -0,0 +1,369 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.blocks;
+
+import com.google.common.collect.Lists;
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnChangedComponent;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.math.AABB;
+import org.terasology.math.Side;
+import org.terasology.math.SideBitFlag;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.network.NetworkSystem;
+import org.terasology.registry.In;
+import org.terasology.registry.Share;
+import org.terasology.world.BlockEntityRegistry;
+import org.terasology.world.OnChangedBlock;
+import org.terasology.world.WorldComponent;
+import org.terasology.world.WorldProvider;
+import org.terasology.world.block.Block;
+import org.terasology.world.block.BlockComponent;
+import org.terasology.world.chunks.Chunk;
+import org.terasology.world.chunks.ChunkConstants;
+import org.terasology.world.chunks.ChunkProvider;
+import org.terasology.world.chunks.event.BeforeChunkUnload;
+import org.terasology.world.chunks.event.OnChunkLoaded;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Topology of the rail blocks. Nodes are rail blocks, links are the connections encoded in their blocks.
+ * Kept up to date from block changes so vehicles never need to probe the world for rails. On the authority nodes stay
+ * in the graph when their chunk unloads, so trains can still be followed along track nobody is near. Clients keep
+ * their own graph of the loaded rails only, to predict vehicle motion along it.
+ */
+@RegisterSystem(RegisterMode.ALWAYS)
+@Share(RailGraph.class)
+public class RailGraph extends BaseComponentSystem {
+    private static final int[] LINK_HEIGHTS = {0, -1, 1};
+    private static final byte UNKNOWN_ID = 0;
+    private static final byte RAIL_ID = 1;
+    private static final byte OTHER_ID = 2;
+
+    @In
+    private WorldProvider worldProvider;
+    @In
+    private BlockEntityRegistry blockEntityRegistry;
+    @In
+    private NetworkSystem networkSystem;
+    @In
+    private ChunkProvider chunkProvider;
+
+    private TLongObjectMap<RailNode> nodes = new TLongObjectHashMap<>();
+    // Keys of the rail nodes in each chunk, so areas without rails can be ruled out in a lookup or two and a chunk's
+    // nodes are found without going through the whole graph
+    private TLongObjectMap<TLongSet> chunkNodes = new TLongObjectHashMap<>();
+    // Whether each block id is a rail, indexed by the unsigned id
+    private final byte[] railIds = new byte[1 << Short.SIZE];
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Told about every rail added, changed or removed.
+     */
+    public interface Listener {
+        void onNodeChanged(Vector3i position);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Rail blocks have no entities to announce them, so each chunk is scanned for rails as it loads. Nodes kept from
+     * an earlier visit are checked against the blocks first.
+     */
+    @ReceiveEvent(components = {WorldComponent.class})
+    public void onChunkLoaded(OnChunkLoaded event, EntityRef worldEntity) {
+        Vector3i chunkPos = event.getChunkPos();
+        for (Vector3i position : getPositionsInChunk(chunkPos)) {
+            if (!RailsUpdatesFamily.isRail(worldProvider.getBlock(position))) {
+                removeNode(position);
+            }
+        }
+        Chunk chunk = chunkProvider.getChunk(chunkPos);
+        if (chunk == null) {
+            return;
+        }
+        // Read the chunk's own block data and rule blocks out by id, rather than going through the world for every block
+        int minX = chunkPos.x << ChunkConstants.POWER_X;
+        int minY = chunkPos.y << ChunkConstants.POWER_Y;
+        int minZ = chunkPos.z << ChunkConstants.POWER_Z;
+        Vector3i position = new Vector3i();
+        for (int y = 0; y < ChunkConstants.SIZE_Y; y++) {
+            for (int z = 0; z < ChunkConstants.SIZE_Z; z++) {
+                for (int x = 0; x < ChunkConstants.SIZE_X; x++) {
+                    Block block = chunk.getBlock(x, y, z);
+                    if (isRailId(block)) {
+                        position.set(minX + x, minY + y, minZ + z);
+                        updateNode(position, block);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Block ids never change meaning within a game, so whether an id is a rail is looked up in the rails type tables
+     * once and remembered.
+     */
+    private boolean isRailId(Block block) {
+        int id = block.getId() & 0xFFFF;
+        byte known = railIds[id];
+        if (known == UNKNOWN_ID) {
+            known = RailsUpdatesFamily.isRail(block) ? RAIL_ID : OTHER_ID;
+            railIds[id] = known;
+        }
+        return known == RAIL_ID;
+    }
+
+    @ReceiveEvent(components = {RailJunctionComponent.class, BlockComponent.class})
+    public void onJunctionActivated(OnActivatedComponent event, EntityRef blockEntity) {
+        updateJunction(blockEntity);
+    }
+
+    @ReceiveEvent(components = {RailJunctionComponent.class, BlockComponent.class})
+    public void onJunctionChanged(OnChangedComponent event, EntityRef blockEntity) {
+        updateJunction(blockEntity);
+    }
+
+    /**
+     * Only the authority simulates trains on unloaded track, so everywhere else a chunk's rails go with it.
+     */
+    @ReceiveEvent(components = {WorldComponent.class})
+    public void onChunkUnloading(BeforeChunkUnload event, EntityRef worldEntity) {
+        if (networkSystem.getMode().isAuthority()) {
+            return;
+        }
+        for (Vector3i position : getPositionsInChunk(event.getChunkPos())) {
+            removeNode(position);
+        }
+    }
+
+    @ReceiveEvent(components = {BlockComponent.class})
+    public void onBlockChanged(OnChangedBlock event, EntityRef blockEntity) {
+        updateNode(event.getBlockPosition(), event.getNewType());
+    }
+
+    public RailNode getNode(int x, int y, int z) {
+        return nodes.get(key(x, y, z));
+    }
+
+    public RailNode getNode(Vector3i position) {
+        return getNode(position.x, position.y, position.z);
+    }
+
+    public RailNode getNode(Vector3f position) {
+        return getNode(Math.round(position.x), Math.round(position.y), Math.round(position.z));
+    }
+
+    /**
+     * @return the rail reached when leaving the node in the given horizontal direction, or null
+     */
+    public RailNode getNextNode(RailNode node, float directionX, float directionZ) {
+        if (node == null || (directionX == 0 && directionZ == 0)) {
+            return null;
+        }
+        return node.getLink(Side.inHorizontalDirection(directionX, directionZ));
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @return whether any rail may lie within one block of the given position; false is exact, true only means
+     * a chunk touching that area holds rails
+     */
+    public boolean hasRailsAround(Vector3i position) {
+        if (chunkNodes.isEmpty()) {
+            return false;
+        }
+        int minX = (position.x - 1) >> ChunkConstants.POWER_X;
+        int maxX = (position.x + 1) >> ChunkConstants.POWER_X;
+        int minY = (position.y - 1) >> ChunkConstants.POWER_Y;
+        int maxY = (position.y + 1) >> ChunkConstants.POWER_Y;
+        int minZ = (position.z - 1) >> ChunkConstants.POWER_Z;
+        int maxZ = (position.z + 1) >> ChunkConstants.POWER_Z;
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                for (int z = minZ; z <= maxZ; z++) {
+                    if (chunkNodes.containsKey(key(x, y, z))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    public void updateNode(Vector3i position, Block block) {
+        ConnectsToRailsComponent.RAILS type = RailsUpdatesFamily.getRailType(block);
+        if (type == null) {
+            removeNode(position);
+            return;
+        }
+
+        byte connections = getConnections(block, type);
+        boolean switched = false;
+        if (type == ConnectsToRailsComponent.RAILS.TEE) {
+            RailJunctionComponent junction = blockEntityRegistry.getExistingBlockEntityAt(position).getComponent(RailJunctionComponent.class);
+            switched = junction != null && junction.switched;
+        }
+        RailNode node = getNode(position);
+        boolean added = node == null;
+        if (added) {
+            node = new RailNode(position);
+        } else if (node.getBlock() == block && node.getConnections() == connections && node.getType() == type
+                && node.isSwitched() == switched) {
+            // Rescanning a chunk finds mostly unchanged rails; relinking them would make listeners drop what they cached
+            return;
+        }
+        node.set(block, connections, type);
+        node.setSwitched(switched);
+        AABB bounds = block.getBounds(position);
+        node.setSurface(bounds.getMin().y, bounds.getMax().y);
+        if (added) {
+            addNode(node);
+        } else {
+            relinkAround(position);
+        }
+    }
+
+    public void removeNode(Vector3i position) {
+        long key = key(position.x, position.y, position.z);
+        if (nodes.remove(key) != null) {
+            long chunkKey = chunkKey(position);
+            TLongSet chunk = chunkNodes.get(chunkKey);
+            if (chunk != null && chunk.remove(key) && chunk.isEmpty()) {
+                chunkNodes.remove(chunkKey);
+            }
+            relinkAround(position);
+        }
+    }
+
+    void addNode(RailNode node) {
+        Vector3i position = node.getPosition();
+        long key = key(position.x, position.y, position.z);
+        if (nodes.put(key, node) == null) {
+            long chunkKey = chunkKey(position);
+            TLongSet chunk = chunkNodes.get(chunkKey);
+            if (chunk == null) {
+                chunk = new TLongHashSet();
+                chunkNodes.put(chunkKey, chunk);
+            }
+            chunk.add(key);
+        }
+        relinkAround(position);
+    }
+
+    private List<Vector3i> getPositionsInChunk(Vector3i chunkPos) {
+        List<Vector3i> positions = Lists.newArrayList();
+        TLongSet chunk = chunkNodes.get(key(chunkPos.x, chunkPos.y, chunkPos.z));
+        if (chunk == null) {
+            return positions;
+        }
+        TLongIterator iterator = chunk.iterator();
+        while (iterator.hasNext()) {
+            positions.add(nodes.get(iterator.next()).getPosition());
+        }
+        return positions;
+    }
+
+    private void updateJunction(EntityRef blockEntity) {
+        RailNode node = getNode(blockEntity.getComponent(BlockComponent.class).getPosition());
+        if (node != null && node.getType() == ConnectsToRailsComponent.RAILS.TEE) {
+            node.setSwitched(blockEntity.getComponent(RailJunctionComponent.class).switched);
+        }
+    }
+
+    private void relinkAround(Vector3i position) {
+        for (Listener listener : listeners) {
+            listener.onNodeChanged(position);
+        }
+        relink(getNode(position));
+        for (int height : LINK_HEIGHTS) {
+            for (Side side : Side.horizontalSides()) {
+                Vector3i offset = side.getVector3i();
+                relink(getNode(position.x + offset.x, position.y + height, position.z + offset.z));
+            }
+        }
+    }
+
+    private void relink(RailNode node) {
+        if (node == null) {
+            return;
+        }
+        for (Side side : Side.horizontalSides()) {
+            node.setLink(side, findLink(node, side));
+        }
+    }
+
+    private RailNode findLink(RailNode node, Side side) {
+        if (!node.isConnected(side)) {
+            return null;
+        }
+        Vector3i position = node.getPosition();
+        Vector3i offset = side.getVector3i();
+        int portHeight = node.getPortHeight(side);
+        Side reverse = side.reverse();
+        for (int height : LINK_HEIGHTS) {
+            RailNode neighbour = getNode(position.x + offset.x, position.y + height, position.z + offset.z);
+            if (neighbour != null && neighbour.isConnected(reverse) && neighbour.getPortHeight(reverse) == portHeight) {
+                return neighbour;
+            }
+        }
+        return null;
+    }
+
+    private byte getConnections(Block block, ConnectsToRailsComponent.RAILS type) {
+        if (block.getBlockFamily() instanceof RailsUpdatesFamily) {
+            try {
+                return Byte.parseByte(block.getURI().getIdentifier().toString());
+            } catch (IllegalArgumentException e) {
+                return 0;
+            }
+        }
+        if (type == ConnectsToRailsComponent.RAILS.TEE_INVERSED) {
+            Side stem = block.getDirection();
+            return SideBitFlag.getSides(stem, stem.yawClockwise(1), stem.yawClockwise(-1));
+        }
+        return 0;
+    }
+
+    private static long chunkKey(Vector3i position) {
+        return key(position.x >> ChunkConstants.POWER_X, position.y >> ChunkConstants.POWER_Y, position.z >> ChunkConstants.POWER_Z);
+    }
+
+    public static long key(int x, int y, int z) {
+        return ((long) (x & 0x1FFFFF) << 42) | ((long) (y & 0x1FFFFF) << 21) | (long) (z & 0x1FFFFF);
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.blocks;
+
+import org.terasology.entitySystem.Component;
+import org.terasology.network.Replicate;
+import org.terasology.world.block.ForceBlockActive;
+
+/**
+ * Switch state of a tee junction, kept on the junction's block entity once it has been switched for the first time.
+ * Rail block entities are otherwise temporary, so this keeps the entity, and with it the state, in the chunk's store.
+ * Vehicles read it through the junction's {@link RailNode}; switching never replaces the block.
+ */
+@ForceBlockActive
+public class RailJunctionComponent implements Component {
+    // Whether vehicles take the other branch of the junction
+    @Replicate
+    public boolean switched;
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.blocks;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import org.terasology.entitySystem.entity.EntityBuilder;
+import org.terasology.entitySystem.entity.EntityManager;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnChangedComponent;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.logic.location.LocationComponent;
+import org.terasology.math.Side;
+import org.terasology.math.TeraMath;
+import org.terasology.math.geom.Quat4f;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.registry.In;
+import org.terasology.world.WorldProvider;
+import org.terasology.world.block.BlockComponent;
+
+/**
+ * Shows which way tee junctions are set. A switched junction gets a local overlay with the inverted tee tile, laid
+ * over the rail the way the inverted block used to be placed; switching back removes it. Overlays are never saved
+ * or replicated.
+ */
+@RegisterSystem(RegisterMode.CLIENT)
+public class RailJunctionRenderSystem extends BaseComponentSystem {
+    private static final Vector3f YAW_AXIS = new Vector3f(0f, 1f, 0f);
+    // Just above the rail surface, so the overlay covers the tile beneath it
+    private static final float OVERLAY_HEIGHT = -0.45f;
+
+    @In
+    private EntityManager entityManager;
+    @In
+    private WorldProvider worldProvider;
+
+    private final TLongObjectMap<EntityRef> overlays = new TLongObjectHashMap<>();
+
+    @ReceiveEvent(components = {RailJunctionComponent.class, BlockComponent.class})
+    public void onJunctionActivated(OnActivatedComponent event, EntityRef blockEntity) {
+        updateOverlay(blockEntity);
+    }
+
+    @ReceiveEvent(components = {RailJunctionComponent.class, BlockComponent.class})
+    public void onJunctionChanged(OnChangedComponent event, EntityRef blockEntity) {
+        updateOverlay(blockEntity);
+    }
+
+    @ReceiveEvent(components = {RailJunctionComponent.class})
+    public void onJunctionDeactivated(BeforeDeactivateComponent event, EntityRef blockEntity) {
+        removeOverlay(blockEntity.getId());
+    }
+
+    @Override
+    public void shutdown() {
+        for (EntityRef overlay : overlays.valueCollection()) {
+            overlay.destroy();
+        }
+        overlays.clear();
+    }
+
+    private void updateOverlay(EntityRef blockEntity) {
+        if (!blockEntity.getComponent(RailJunctionComponent.class).switched) {
+            removeOverlay(blockEntity.getId());
+            return;
+        }
+        if (overlays.containsKey(blockEntity.getId())) {
+            return;
+        }
+        Vector3i position = blockEntity.getComponent(BlockComponent.class).getPosition();
+        // Switching used to place the inverted block turned around
+        Side direction = worldProvider.getBlock(position).getDirection().yawClockwise(2);
+        int turns = 0;
+        while (turns < 4 && Side.FRONT.yawClockwise(turns) != direction) {
+            turns++;
+        }
+
+        EntityBuilder builder = entityManager.newBuilder("rails:junctionSwitch");
+        builder.setPersistent(false);
+        LocationComponent location = builder.getComponent(LocationComponent.class);
+        location.setWorldPosition(new Vector3f(position.x, position.y + OVERLAY_HEIGHT, position.z));
+        location.setWorldRotation(new Quat4f(YAW_AXIS, -turns * TeraMath.PI / 2));
+        overlays.put(blockEntity.getId(), builder.build());
+    }
+
+    private void removeOverlay(long blockEntityId) {
+        EntityRef overlay = overlays.remove(blockEntityId);
+        if (overlay != null) {
+            overlay.destroy();
+        }
+    }
+}
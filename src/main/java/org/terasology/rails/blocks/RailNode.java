@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.blocks;
+
+import org.terasology.math.Side;
+import org.terasology.math.SideBitFlag;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.world.block.Block;
+
+/**
+ * A single rail block in the {@link RailGraph}. Links point at the rail reached when leaving this block through a side.
+ */
+public class RailNode {
+    private final Vector3i position;
+    private final RailNode[] links = new RailNode[Side.values().length];
+    private Block block;
+    private byte connections;
+    private ConnectsToRailsComponent.RAILS type;
+    private Side highSide;
+    private float surfaceBottom;
+    private float surfaceTop;
+    private boolean switched;
+
+    RailNode(Vector3i position) {
+        this.position = new Vector3i(position);
+    }
+
+    void set(Block newBlock, byte newConnections, ConnectsToRailsComponent.RAILS newType) {
+        this.block = newBlock;
+        this.connections = newConnections;
+        this.type = newType;
+        this.highSide = null;
+        this.switched = false;
+        if (newType == ConnectsToRailsComponent.RAILS.SLOPE) {
+            for (Side side : Side.horizontalSides()) {
+                if ((newConnections & SideBitFlag.getSide(side)) != 0) {
+                    highSide = side;
+                    break;
+                }
+            }
+        }
+    }
+
+    void setSurface(float bottom, float top) {
+        this.surfaceBottom = bottom;
+        this.surfaceTop = top;
+    }
+
+    void setSwitched(boolean newSwitched) {
+        this.switched = newSwitched;
+    }
+
+    void setLink(Side side, RailNode node) {
+        links[side.ordinal()] = node;
+    }
+
+    public Vector3i getPosition() {
+        return position;
+    }
+
+    public Block getBlock() {
+        return block;
+    }
+
+    public byte getConnections() {
+        return connections;
+    }
+
+    public ConnectsToRailsComponent.RAILS getType() {
+        return type;
+    }
+
+    public RailNode getLink(Side side) {
+        return links[side.ordinal()];
+    }
+
+    public boolean isSlope() {
+        return type == ConnectsToRailsComponent.RAILS.SLOPE;
+    }
+
+    public boolean isCorner() {
+        return type == ConnectsToRailsComponent.RAILS.CURVE
+                || type == ConnectsToRailsComponent.RAILS.TEE
+                || type == ConnectsToRailsComponent.RAILS.TEE_INVERSED;
+    }
+
+    /**
+     * @return whether this is a junction switched over to its other branch
+     */
+    public boolean isSwitched() {
+        return switched;
+    }
+
+    /**
+     * @return the side a slope rises towards, or null if this is not a slope
+     */
+    public Side getHighSide() {
+        return highSide;
+    }
+
+    /**
+     * Height of the rail surface under the given point, taken from the block's collision bounds.
+     * Slopes rise linearly from their low side to their high side.
+     */
+    public float getSurfaceHeight(float x, float z) {
+        if (highSide == null) {
+            return surfaceTop;
+        }
+        Vector3i rise = highSide.getVector3i();
+        float along = (x - position.x) * rise.x + (z - position.z) * rise.z;
+        along = Math.max(-0.5f, Math.min(0.5f, along));
+        return surfaceBottom + (along + 0.5f) * (surfaceTop - surfaceBottom);
+    }
+
+    public boolean isConnected(Side side) {
+        if (highSide != null) {
+            return side == highSide || side == highSide.reverse();
+        }
+        return (connections & SideBitFlag.getSide(side)) != 0;
+    }
+
+    /**
+     * @return the segment followed by a vehicle entering through the given side; where the rails branch,
+     * the exit closest to the vehicle's direction of travel is taken
+     */
+    public TrackSegment getSegment(Side entry, float directionX, float directionZ) {
+        return getSegment(entry, getExit(entry, directionX, directionZ));
+    }
+
+    /**
+     * @return the side a vehicle entering through the given side leaves through; where the rails branch, the one
+     * closest to the given direction
+     */
+    public Side getExit(Side entry, float directionX, float directionZ) {
+        Side exit = entry.reverse();
+        float best = Float.NEGATIVE_INFINITY;
+        for (Side side : Side.horizontalSides()) {
+            if (side == entry || !isConnected(side)) {
+                continue;
+            }
+            Vector3i vector = side.getVector3i();
+            float score = vector.x * directionX + vector.z * directionZ;
+            if (side == entry.reverse()) {
+                // Going straight on wins a tie
+                score += 0.5f;
+            }
+            if (score > best) {
+                best = score;
+                exit = side;
+            }
+        }
+        return exit;
+    }
+
+    /**
+     * @return the segment from one side of this block to another
+     */
+    public TrackSegment getSegment(Side entry, Side exit) {
+        int rise = exit == highSide ? 1 : (entry == highSide ? -1 : 0);
+        return TrackSegment.get(entry, exit, rise);
+    }
+
+    /**
+     * Height at which a vehicle leaves this block through the given side.
+     */
+    public int getPortHeight(Side side) {
+        return side == highSide ? position.y + 1 : position.y;
+    }
+}
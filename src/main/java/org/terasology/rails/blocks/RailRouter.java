@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.blocks;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.math.Side;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.registry.In;
+import org.terasology.registry.Share;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks which way trains go at junctions to reach their destination. One search from a destination gives every rail
+ * connected to it its distance there, by the side a train enters it through, which then answers all junctions for
+ * that destination until the track connected to it changes. Tables are built on the main thread with
+ * {@link #prepare(RailNode)}, so vehicles stepped in parallel only ever read them.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+@Share(RailRouter.class)
+public class RailRouter extends BaseComponentSystem implements RailGraph.Listener {
+    @In
+    private RailGraph railGraph;
+
+    // Distance in rails to each destination, by destination, then by the side the rail is entered through, then by
+    // rail, keyed as in the rail graph
+    private final Map<Long, TLongIntMap[]> distances = new ConcurrentHashMap<>();
+
+    @Override
+    public void initialise() {
+        railGraph.addListener(this);
+    }
+
+    @Override
+    public void shutdown() {
+        railGraph.removeListener(this);
+        distances.clear();
+    }
+
+    /**
+     * Makes sure the distances to the destination are known before trains heading there are moved.
+     */
+    public void prepare(RailNode destination) {
+        Vector3i target = destination.getPosition();
+        long key = RailGraph.key(target.x, target.y, target.z);
+        if (!distances.containsKey(key)) {
+            distances.put(key, search(destination));
+        }
+    }
+
+    /**
+     * @return the side to leave the junction through to get closest to the destination, or null if the destination
+     * cannot be reached from there without reversing or has not been prepared
+     */
+    public Side getExit(RailNode junction, Side entry, RailNode destination) {
+        Vector3i target = destination.getPosition();
+        TLongIntMap[] distance = distances.get(RailGraph.key(target.x, target.y, target.z));
+        if (distance == null) {
+            return null;
+        }
+        Side exit = null;
+        int best = Integer.MAX_VALUE;
+        for (Side side : Side.horizontalSides()) {
+            RailNode next = junction.getLink(side);
+            if (side == entry || next == null) {
+                continue;
+            }
+            Vector3i position = next.getPosition();
+            long key = RailGraph.key(position.x, position.y, position.z);
+            TLongIntMap entered = distance[side.reverse().ordinal()];
+            if (entered.containsKey(key) && entered.get(key) < best) {
+                best = entered.get(key);
+                exit = side;
+            }
+        }
+        return exit;
+    }
+
+    @Override
+    public void onNodeChanged(Vector3i position) {
+        // Only routes through the track around the change can be affected
+        Iterator<TLongIntMap[]> iterator = distances.values().iterator();
+        while (iterator.hasNext()) {
+            if (touches(iterator.next(), position)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private boolean touches(TLongIntMap[] distance, Vector3i position) {
+        for (TLongIntMap entered : distance) {
+            for (int x = -1; x <= 1; x++) {
+                for (int y = -1; y <= 1; y++) {
+                    for (int z = -1; z <= 1; z++) {
+                        if (entered.containsKey(RailGraph.key(position.x + x, position.y + y, position.z + z))) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Searches back from the destination over rails and the sides they are entered through, since that decides where a
+     * train can go next: straight across at intersections, anywhere but back elsewhere.
+     */
+    private TLongIntMap[] search(RailNode destination) {
+        TLongIntMap[] distance = new TLongIntMap[Side.values().length];
+        for (int i = 0; i < distance.length; i++) {
+            distance[i] = new TLongIntHashMap();
+        }
+        Queue<RailNode> openNodes = new ArrayDeque<>();
+        Queue<Side> openEntries = new ArrayDeque<>();
+        Vector3i start = destination.getPosition();
+        long startKey = RailGraph.key(start.x, start.y, start.z);
+        for (Side entry : Side.horizontalSides()) {
+            distance[entry.ordinal()].put(startKey, 0);
+            openNodes.add(destination);
+            openEntries.add(entry);
+        }
+        while (!openNodes.isEmpty()) {
+            RailNode node = openNodes.poll();
+            Side entry = openEntries.poll();
+            Vector3i position = node.getPosition();
+            int nextDistance = distance[entry.ordinal()].get(RailGraph.key(position.x, position.y, position.z)) + 1;
+            // The rail a train came from to enter this one through the given side, and the sides it can have entered
+            // that rail through to leave it towards this one
+            RailNode previous = node.getLink(entry);
+            Side previousExit = entry.reverse();
+            if (previous == null || previous.getLink(previousExit) != node) {
+                continue;
+            }
+            Vector3i previousPosition = previous.getPosition();
+            long previousKey = RailGraph.key(previousPosition.x, previousPosition.y, previousPosition.z);
+            for (Side previousEntry : Side.horizontalSides()) {
+                if (previousEntry == previousExit || previous.getLink(previousEntry) == null) {
+                    continue;
+                }
+                if (previous.getType() == ConnectsToRailsComponent.RAILS.INTERSECTION
+                        && previousEntry != previousExit.reverse()) {
+                    continue;
+                }
+                TLongIntMap entered = distance[previousEntry.ordinal()];
+                if (!entered.containsKey(previousKey)) {
+                    entered.put(previousKey, nextDistance);
+                    openNodes.add(previous);
+                    openEntries.add(previousEntry);
+                }
+            }
+        }
+        return distance;
+    }
+}
@@ -15,9 +15,14 @@
  */
 package org.terasology.rails.blocks;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.terasology.audio.events.PlaySoundEvent;
 import org.terasology.entitySystem.entity.EntityRef;
 import org.terasology.entitySystem.event.EventPriority;
 import org.terasology.entitySystem.event.ReceiveEvent;
@@ -32,7 +37,11 @@ import org.terasology.logic.health.EngineDamageTypes;
 import org.terasology.logic.inventory.ItemComponent;
 import org.terasology.math.Side;
 import org.terasology.math.geom.Vector3i;
+import org.terasology.rails.metrics.RailMetric;
+import org.terasology.rails.metrics.RailMetrics;
 import org.terasology.registry.In;
+import org.terasology.registry.Share;
+import org.terasology.utilities.Assets;
 import org.terasology.world.BlockEntityRegistry;
 import org.terasology.world.OnChangedBlock;
 import org.terasology.world.WorldProvider;
@@ -45,9 +54,12 @@ import org.terasology.world.block.entity.placement.PlaceBlocks;
 import org.terasology.world.block.family.BlockFamily;
 import org.terasology.world.block.items.BlockItemComponent;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 
 @RegisterSystem(RegisterMode.AUTHORITY)
+@Share(RailsBlockFamilyUpdateSystem.class)
 public class RailsBlockFamilyUpdateSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
     private static final Logger logger = LoggerFactory.getLogger(RailsBlockFamilyUpdateSystem.class);
 
@@ -57,6 +69,10 @@ public class RailsBlockFamilyUpdateSystem extends BaseComponentSystem implements
     private BlockEntityRegistry blockEntityRegistry;
     @In
     private BlockManager blockManager;
+    @In
+    private RailMetrics metrics;
+    @In
+    private RailGraph railGraph;
 
     private int largeBlockUpdateCount;
     private Set<Vector3i> blocksUpdatedInLargeBlockUpdate = Sets.newHashSet();
@@ -84,6 +100,9 @@ public class RailsBlockFamilyUpdateSystem extends BaseComponentSystem implements
     public void doDestroy(DoDestroyEvent event, EntityRef entity, BlockComponent blockComponent) {
         Vector3i upBlock = new Vector3i(blockComponent.getPosition());
         upBlock.y += 1;
+        if (railGraph.getNode(upBlock) == null) {
+            return;
+        }
         Block block = worldProvider.getBlock(upBlock);
 
         if (block.getBlockFamily() instanceof RailsUpdatesFamily) {
@@ -100,9 +119,17 @@ public class RailsBlockFamilyUpdateSystem extends BaseComponentSystem implements
         }
         Vector3i targetLocation = blockComponent.getPosition();
         if (connectsToRailsComponent.type == ConnectsToRailsComponent.RAILS.TEE) {
-            BlockFamily type = blockManager.getBlockFamily("RailsTBlockInverted");
-            Block targetBlock = worldProvider.getBlock(targetLocation);
-            changeTBlock(event.getInstigator(), type, targetLocation, targetBlock.getDirection(), targetBlock.getDirection().yawClockwise(2));
+            // Only the switch state changes; the block stays as it is
+            RailJunctionComponent junction = entity.getComponent(RailJunctionComponent.class);
+            if (junction == null) {
+                junction = new RailJunctionComponent();
+                junction.switched = true;
+                entity.addComponent(junction);
+            } else {
+                junction.switched = !junction.switched;
+                entity.saveComponent(junction);
+            }
+            entity.send(new PlaySoundEvent(Assets.getSound("engine:click").get(), 0.5f));
         } else if (connectsToRailsComponent.type == ConnectsToRailsComponent.RAILS.TEE_INVERSED) {
             BlockFamily type = blockManager.getBlockFamily("rails:Rails");
             Block targetBlock = worldProvider.getBlock(targetLocation);
@@ -124,6 +151,65 @@ public class RailsBlockFamilyUpdateSystem extends BaseComponentSystem implements
         }
     }
 
+    /**
+     * Lays rails at all of the given positions in one large block update. The final block of every new rail, and of
+     * every rail already next to one, is worked out up front and written once, so no neighbour updates follow.
+     * Positions that are not free to build in are skipped.
+     *
+     * @return the number of rails placed
+     */
+    public int placeRails(Collection<Vector3i> positions) {
+        RailsUpdatesFamily railsFamily = (RailsUpdatesFamily) blockManager.getBlockFamily("rails:Rails");
+        TLongSet pendingRails = new TLongHashSet();
+        Set<Vector3i> affected = Sets.newLinkedHashSet();
+        for (Vector3i position : positions) {
+            if (worldProvider.getBlock(position).isReplacementAllowed() && pendingRails.add(RailGraph.key(position.x, position.y, position.z))) {
+                affected.add(position);
+            }
+        }
+        int placed = affected.size();
+        if (placed == 0) {
+            return 0;
+        }
+
+        for (Vector3i position : Lists.newArrayList(affected)) {
+            for (int height : checkOnHeight) {
+                for (Side side : Side.horizontalSides()) {
+                    Vector3i neighborLocation = new Vector3i(position);
+                    neighborLocation.add(side.getVector3i());
+                    neighborLocation.y += height;
+                    if (worldProvider.getBlock(neighborLocation).getBlockFamily() instanceof RailsUpdatesFamily) {
+                        affected.add(neighborLocation);
+                    }
+                }
+            }
+        }
+
+        Map<Vector3i, Block> finalBlocks = Maps.newLinkedHashMap();
+        for (Vector3i position : affected) {
+            Block block = railsFamily.getBlockForBatchPlacement(worldProvider, position, pendingRails);
+            if (block == null && pendingRails.contains(RailGraph.key(position.x, position.y, position.z))) {
+                block = railsFamily.getArchetypeBlock();
+            }
+            if (block != null && block != worldProvider.getBlock(position)) {
+                finalBlocks.put(position, block);
+            }
+        }
+
+        EntityRef worldEntity = worldProvider.getWorldEntity();
+        worldEntity.send(new LargeBlockUpdateStarting());
+        try {
+            for (Map.Entry<Vector3i, Block> entry : finalBlocks.entrySet()) {
+                worldProvider.setBlock(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            // Everything around the batch is already final
+            blocksUpdatedInLargeBlockUpdate.removeAll(finalBlocks.keySet());
+            worldEntity.send(new LargeBlockUpdateFinished());
+        }
+        return placed;
+    }
+
     private void notifyNeighboursOfChangedBlocks() {
         // Invoke the updates in another large block change for this class only
         largeBlockUpdateCount++;
@@ -156,23 +242,29 @@ public class RailsBlockFamilyUpdateSystem extends BaseComponentSystem implements
         }
     }
 
-    private void processUpdateForBlockLocation(Vector3i blockLocation) {
+    void processUpdateForBlockLocation(Vector3i blockLocation) {
+        // Most block changes happen nowhere near a rail
+        if (!railGraph.hasRailsAround(blockLocation)) {
+            return;
+        }
+        int neighbourUpdates = 0;
         for (int height : checkOnHeight) {
             for (Side side : Side.horizontalSides()) {
                 Vector3i neighborLocation = new Vector3i(blockLocation);
                 neighborLocation.add(side.getVector3i());
                 neighborLocation.y += height;
                 Block neighborBlock = worldProvider.getBlock(neighborLocation);
-                EntityRef blockEntity = blockEntityRegistry.getBlockEntityAt(neighborLocation);
-                if (blockEntity.hasComponent(ConnectsToRailsComponent.class)) {
+                if (RailsUpdatesFamily.isRail(neighborBlock)) {
                     RailsUpdatesFamily railsFamily = (RailsUpdatesFamily) blockManager.getBlockFamily("rails:Rails");
                     Block neighborBlockAfterUpdate = railsFamily.getBlockForNeighborRailUpdate(worldProvider, blockEntityRegistry, neighborLocation, neighborBlock);
+                    neighbourUpdates++;
                     if (neighborBlock != neighborBlockAfterUpdate && neighborBlockAfterUpdate != null) {
                         worldProvider.setBlock(neighborLocation, neighborBlockAfterUpdate);
                     }
                 }
             }
         }
+        metrics.record(RailMetric.NEIGHBOUR_UPDATES, neighbourUpdates);
     }
 
     @Override
@@ -20,27 +20,23 @@ import com.google.common.collect.Sets;
 import gnu.trove.iterator.TByteObjectIterator;
 import gnu.trove.map.TByteObjectMap;
 import gnu.trove.map.hash.TByteObjectHashMap;
-import org.terasology.entitySystem.entity.EntityRef;
 import org.terasology.math.Rotation;
 import org.terasology.math.Side;
 import org.terasology.math.SideBitFlag;
-import org.terasology.math.geom.Vector3i;
 import org.terasology.naming.Name;
 import org.terasology.registry.In;
-import org.terasology.world.BlockEntityRegistry;
-import org.terasology.world.WorldProvider;
 import org.terasology.world.block.Block;
 import org.terasology.world.block.BlockBuilderHelper;
 import org.terasology.world.block.BlockManager;
 import org.terasology.world.block.BlockUri;
 import org.terasology.world.block.family.BlockFamily;
 import org.terasology.world.block.family.BlockFamilyFactory;
-import org.terasology.world.block.family.ConnectionCondition;
 import org.terasology.world.block.family.RegisterBlockFamilyFactory;
 import org.terasology.world.block.loader.BlockFamilyDefinition;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -65,12 +61,20 @@ public class RailsFamilyFactory implements BlockFamilyFactory  {
                 put(THREE_CONNECTIONS_T, SideBitFlag.getSides(Side.LEFT, Side.RIGHT, Side.FRONT));
                 put(FOUR_CONNECTIONS_CROSS, SideBitFlag.getSides(Side.RIGHT, Side.LEFT, Side.BACK, Side.FRONT));
             } };
+    private static final Map<String, ConnectsToRailsComponent.RAILS> RAILS_TYPES =
+            new HashMap<String, ConnectsToRailsComponent.RAILS>() { {
+                put(NO_CONNECTIONS, ConnectsToRailsComponent.RAILS.PLANE);
+                put(ONE_CONNECTION, ConnectsToRailsComponent.RAILS.PLANE);
+                put(ONE_CONNECTIONS_SLOPE, ConnectsToRailsComponent.RAILS.SLOPE);
+                put(TWO_CONNECTIONS_LINE, ConnectsToRailsComponent.RAILS.PLANE);
+                put(TWO_CONNECTIONS_CORNER, ConnectsToRailsComponent.RAILS.CURVE);
+                put(THREE_CONNECTIONS_T, ConnectsToRailsComponent.RAILS.TEE);
+                put(FOUR_CONNECTIONS_CROSS, ConnectsToRailsComponent.RAILS.INTERSECTION);
+            } };
 
-    private ConnectionCondition connectionCondition;
     private byte connectionSides;
 
     public RailsFamilyFactory() {
-        connectionCondition = new RailsConnectionCondition();
         connectionSides = SideBitFlag.getSides(Side.BACK,Side.FRONT,Side.RIGHT,Side.LEFT,Side.TOP);
     }
 
@@ -92,6 +96,7 @@ public class RailsFamilyFactory implements BlockFamilyFactory  {
     public BlockFamily createBlockFamily(BlockFamilyDefinition definition, BlockBuilderHelper blockBuilder) {
         TByteObjectMap<String>[] basicBlocks = new TByteObjectMap[5];
         TByteObjectMap<Block> blocksForConnections = new TByteObjectHashMap<>();
+        Map<Block, ConnectsToRailsComponent.RAILS> railTypes = new IdentityHashMap<>();
 
         addConnections(basicBlocks, 0, NO_CONNECTIONS);
         addConnections(basicBlocks, 1, ONE_CONNECTION);
@@ -107,7 +112,7 @@ public class RailsFamilyFactory implements BlockFamilyFactory  {
         for (byte connections = 0; connections < 54; connections++) {
             // Only the allowed connections should be created
             if ((connections & connectionSides) == connections) {
-                Block block = constructBlockForConnections(connections, blockBuilder, definition, basicBlocks);
+                Block block = constructBlockForConnections(connections, blockBuilder, definition, basicBlocks, railTypes);
                 if (block != null) {
                     block.setUri(new BlockUri(blockUri, new Name(String.valueOf(connections))));
                     blocksForConnections.put(connections, block);
@@ -116,8 +121,8 @@ public class RailsFamilyFactory implements BlockFamilyFactory  {
         }
 
         final Block archetypeBlock = blocksForConnections.get(SideBitFlag.getSides(Side.RIGHT, Side.LEFT));
-        return new RailsUpdatesFamily(connectionCondition, blockUri, definition.getCategories(),
-                archetypeBlock, blocksForConnections, (byte) (connectionSides & 0b111110));
+        return new RailsUpdatesFamily(blockUri, definition.getCategories(), archetypeBlock, blocksForConnections, railTypes,
+                (byte) (connectionSides & 0b111110));
     }
 
     protected void addConnections(TByteObjectMap<String>[] basicBlocks, int index, String connections) {
@@ -131,7 +136,8 @@ public class RailsFamilyFactory implements BlockFamilyFactory  {
     }
 
     protected Block constructBlockForConnections(final byte connections, final BlockBuilderHelper blockBuilder,
-                                                 BlockFamilyDefinition definition, TByteObjectMap<String>[] basicBlocks) {
+                                                 BlockFamilyDefinition definition, TByteObjectMap<String>[] basicBlocks,
+                                                 Map<Block, ConnectsToRailsComponent.RAILS> railTypes) {
         int connectionCount = SideBitFlag.getSides(connections).size();
         TByteObjectMap<String> possibleBlockDefinitions = basicBlocks[connectionCount];
         final TByteObjectIterator<String> blockDefinitionIterator = possibleBlockDefinitions.iterator();
@@ -141,7 +147,9 @@ public class RailsFamilyFactory implements BlockFamilyFactory  {
             final String section = blockDefinitionIterator.value();
             Rotation rot = getRotationToAchieve(originalConnections, connections);
             if (rot != null) {
-                return blockBuilder.constructTransformedBlock(definition, section, rot);
+                Block block = blockBuilder.constructTransformedBlock(definition, section, rot);
+                railTypes.put(block, RAILS_TYPES.get(section));
+                return block;
             }
         }
         return null;
@@ -162,20 +170,4 @@ public class RailsFamilyFactory implements BlockFamilyFactory  {
         }
         return null;
     }
-
-    public static class RailsConnectionCondition implements ConnectionCondition {
-        @Override
-        public boolean isConnectingTo(Vector3i blockLocation, Side connectSide, WorldProvider worldProvider, BlockEntityRegistry blockEntityRegistry) {
-            Vector3i neighborLocation = new Vector3i(blockLocation);
-            neighborLocation.add(connectSide.getVector3i());
-
-            EntityRef neighborEntity = blockEntityRegistry.getEntityAt(neighborLocation);
-
-            return neighborEntity != null && connectsToNeighbor(neighborEntity, connectSide.reverse());
-        }
-
-        private boolean connectsToNeighbor(EntityRef neighborEntity, Side side) {
-            return neighborEntity.hasComponent(ConnectsToRailsComponent.class);
-        }
-    }
 }
\ No newline at end of file
@@ -16,7 +16,8 @@
 package org.terasology.rails.blocks;
 
 import gnu.trove.map.TByteObjectMap;
-import org.terasology.assets.ResourceUrn;
+import gnu.trove.set.TLongSet;
+import org.terasology.entitySystem.entity.EntityRef;
 import org.terasology.math.Side;
 import org.terasology.math.SideBitFlag;
 import org.terasology.math.geom.Vector3i;
@@ -27,31 +28,52 @@ import org.terasology.world.block.Block;
 import org.terasology.world.block.BlockManager;
 import org.terasology.world.block.BlockUri;
 import org.terasology.world.block.family.AbstractBlockFamily;
-import org.terasology.world.block.family.ConnectionCondition;
+import org.terasology.world.block.family.BlockFamily;
 
-import java.util.ArrayList;
-import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 
 public class RailsUpdatesFamily extends AbstractBlockFamily {
-    private ConnectionCondition connectionCondition;
+    private static final Side[] SIDES = Side.values();
+    private static final byte TOP_FLAG = SideBitFlag.getSide(Side.TOP);
+
     private Block archetypeBlock;
 
 
     private TByteObjectMap<Block> blocks;
+    private Map<Block, ConnectsToRailsComponent.RAILS> railTypes;
     private byte connectionSides;
+    // The sides rails may connect through, in the order they are tried, with their flags and offsets
+    private final Side[] connectingSides;
+    private final byte[] connectingFlags;
+    private final int[] offsetX;
+    private final int[] offsetY;
+    private final int[] offsetZ;
 
-    public RailsUpdatesFamily(ConnectionCondition connectionCondition, BlockUri blockUri,
-                              List<String> categories, Block archetypeBlock, TByteObjectMap<Block> blocks, byte connectionSides) {
+    public RailsUpdatesFamily(BlockUri blockUri, List<String> categories, Block archetypeBlock, TByteObjectMap<Block> blocks,
+                              Map<Block, ConnectsToRailsComponent.RAILS> railTypes, byte connectionSides) {
 
         super(blockUri, categories);
-        this.connectionCondition = connectionCondition;
         this.archetypeBlock = archetypeBlock;
         this.blocks = blocks;
+        this.railTypes = railTypes;
         this.connectionSides = connectionSides;
         for (Block block : blocks.valueCollection()) {
             block.setBlockFamily(this);
         }
+
+        connectingSides = SideBitFlag.getSides(connectionSides).toArray(new Side[0]);
+        connectingFlags = new byte[connectingSides.length];
+        offsetX = new int[connectingSides.length];
+        offsetY = new int[connectingSides.length];
+        offsetZ = new int[connectingSides.length];
+        for (int i = 0; i < connectingSides.length; i++) {
+            Vector3i offset = connectingSides[i].getVector3i();
+            connectingFlags[i] = SideBitFlag.getSide(connectingSides[i]);
+            offsetX[i] = offset.x;
+            offsetY[i] = offset.y;
+            offsetZ[i] = offset.z;
+        }
     }
 
     @Override
@@ -61,11 +83,20 @@ public class RailsUpdatesFamily extends AbstractBlockFamily {
 
     @Override
     public Block getBlockForPlacement(WorldProvider worldProvider, BlockEntityRegistry blockEntityRegistry, Vector3i location, Side attachmentSide, Side direction) {
-        return blocks.get(getByteConnections(worldProvider, blockEntityRegistry, location));
+        return blocks.get(getByteConnections(worldProvider, location, null));
     }
 
     public Block getBlockForNeighborRailUpdate(WorldProvider worldProvider, BlockEntityRegistry blockEntityRegistry, Vector3i location, Block oldBlock) {
-        return blocks.get(getByteConnections(worldProvider, blockEntityRegistry, location));
+        return blocks.get(getByteConnections(worldProvider, location, null));
+    }
+
+    /**
+     * @param pendingRails positions, keyed as in {@link RailGraph}, that will hold rails once a batch of placements
+     *                     is written, whatever the world holds there now
+     * @return the block for a rail at the given location once the batch is in place
+     */
+    public Block getBlockForBatchPlacement(WorldProvider worldProvider, Vector3i location, TLongSet pendingRails) {
+        return blocks.get(getByteConnections(worldProvider, location, pendingRails));
     }
 
     @Override
@@ -86,67 +117,98 @@ public class RailsUpdatesFamily extends AbstractBlockFamily {
         return blocks.valueCollection();
     }
 
-    private byte getByteConnections(WorldProvider worldProvider, BlockEntityRegistry blockEntityRegistry, Vector3i location) {
+    /**
+     * Works out which sides a rail at the given location joins up with, from the blocks around it alone.
+     */
+    private byte getByteConnections(WorldProvider worldProvider, Vector3i location, TLongSet pendingRails) {
         byte connections = 0;
-        int countConnetions = 0;
-        boolean hasTopBlock = false;
-        ArrayList<Side> skipSides = new ArrayList<Side>();
-        Vector3i upLocation = new Vector3i(location);
-        upLocation.y += 1;
-        Block block = worldProvider.getBlock(upLocation);
-
-        if (block.getURI() != BlockManager.AIR_ID && !block.isPenetrable() && block.isLiquid()) {
-            hasTopBlock = true;
-        }
-
-        for (Side connectSide : SideBitFlag.getSides(connectionSides)) {
-            if (connectionCondition.isConnectingTo(location, connectSide, worldProvider, blockEntityRegistry)) {
-                connections += SideBitFlag.getSide(connectSide);
-            } else if (hasTopBlock) {
-                block = worldProvider.getBlock(location);
-                if (block.getURI() != BlockManager.AIR_ID && !block.isPenetrable() && block.isLiquid()) {
-                    skipSides.add(connectSide);
-                }
+        int countConnections = 0;
+        byte skipSides = 0;
+        int x = location.x;
+        int y = location.y;
+        int z = location.z;
+
+        boolean blocked = isSolidLiquid(worldProvider.getBlock(x, y + 1, z)) && isSolidLiquid(worldProvider.getBlock(x, y, z));
+        for (int i = 0; i < connectingSides.length; i++) {
+            if (isRailAt(worldProvider, pendingRails, x, y, z, i)) {
+                connections += connectingFlags[i];
+                countConnections++;
+            } else if (blocked) {
+                skipSides |= connectingFlags[i];
             }
         }
-        countConnetions = SideBitFlag.getSides(connections).size();
 
-        upLocation.y -= 2;
-        for (Side connectSide : SideBitFlag.getSides(connectionSides)) {
-            if (connectionCondition.isConnectingTo(upLocation, connectSide, worldProvider, blockEntityRegistry)) {
-                connections += SideBitFlag.getSide(connectSide);
+        for (int i = 0; i < connectingSides.length; i++) {
+            if (isRailAt(worldProvider, pendingRails, x, y - 1, z, i)) {
+                connections += connectingFlags[i];
             }
         }
-        upLocation.y += 2;
-        switch(countConnetions) {
+
+        switch (countConnections) {
             case 0:
-                for (Side connectSide : SideBitFlag.getSides(connectionSides)) {
-                    if (skipSides.contains(connectSide)) {
-                        continue;
-                    }
-                    if (connectionCondition.isConnectingTo(upLocation, connectSide, worldProvider, blockEntityRegistry)) {
-                        connections  = 0;
-                        connections += SideBitFlag.getSide(connectSide);
-                        connections += SideBitFlag.getSide(Side.TOP);
-                        break;
+                for (int i = 0; i < connectingSides.length; i++) {
+                    if ((skipSides & connectingFlags[i]) == 0 && isRailAt(worldProvider, pendingRails, x, y + 1, z, i)) {
+                        return (byte) (connectingFlags[i] + TOP_FLAG);
                     }
                 }
                 break;
             case 1:
-                EnumSet<Side> sides = SideBitFlag.getSides(connections);
-                Side connectSide = (Side) sides.toArray()[0];
-                connectSide = connectSide.reverse();
-                if (skipSides.contains(connectSide)) {
-                    break;
-                }
-                if (connectionCondition.isConnectingTo(upLocation, connectSide, worldProvider, blockEntityRegistry)) {
-                    connections  = 0;
-                    connections += SideBitFlag.getSide(connectSide);
-                    connections += SideBitFlag.getSide(Side.TOP);
-                    break;
+                Side connectSide = firstSide(connections).reverse();
+                byte connectFlag = SideBitFlag.getSide(connectSide);
+                Vector3i offset = connectSide.getVector3i();
+                if ((skipSides & connectFlag) == 0 && isRailAt(worldProvider, pendingRails, x + offset.x, y + 1 + offset.y, z + offset.z)) {
+                    return (byte) (connectFlag + TOP_FLAG);
                 }
                 break;
         }
         return connections;
     }
+
+    /**
+     * @return whether the block is a rail of any kind, going by its block type rather than the entity at its position
+     */
+    public static boolean isRail(Block block) {
+        return getRailType(block) != null;
+    }
+
+    /**
+     * @return the kind of rail the block is, or null if it is not a rail
+     */
+    public static ConnectsToRailsComponent.RAILS getRailType(Block block) {
+        if (block == null) {
+            return null;
+        }
+        BlockFamily family = block.getBlockFamily();
+        if (family instanceof RailsUpdatesFamily) {
+            return ((RailsUpdatesFamily) family).railTypes.get(block);
+        }
+        // Rails outside this family, such as the inverted tee, carry their type on the entity of their block type
+        EntityRef blockEntity = block.getEntity();
+        ConnectsToRailsComponent railsComponent = blockEntity != null ? blockEntity.getComponent(ConnectsToRailsComponent.class) : null;
+        return railsComponent != null ? railsComponent.type : null;
+    }
+
+    private boolean isRailAt(WorldProvider worldProvider, TLongSet pendingRails, int x, int y, int z, int sideIndex) {
+        return isRailAt(worldProvider, pendingRails, x + offsetX[sideIndex], y + offsetY[sideIndex], z + offsetZ[sideIndex]);
+    }
+
+    private static boolean isRailAt(WorldProvider worldProvider, TLongSet pendingRails, int x, int y, int z) {
+        if (pendingRails != null && pendingRails.contains(RailGraph.key(x, y, z))) {
+            return true;
+        }
+        return isRail(worldProvider.getBlock(x, y, z));
+    }
+
+    private static boolean isSolidLiquid(Block block) {
+        return block.getURI() != BlockManager.AIR_ID && !block.isPenetrable() && block.isLiquid();
+    }
+
+    private static Side firstSide(byte connections) {
+        for (Side side : SIDES) {
+            if ((connections & SideBitFlag.getSide(side)) != 0) {
+                return side;
+            }
+        }
+        return null;
+    }
 }
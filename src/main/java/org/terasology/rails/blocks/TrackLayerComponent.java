@@ -0,0 +1,30 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.blocks;
+
+import org.terasology.entitySystem.Component;
+import org.terasology.math.geom.Vector3i;
+
+/**
+ * A tool for laying long runs of track: the first use marks where the track starts, the second lays rails from
+ * there to the block used on. Every rail laid takes a rail from the user's inventory, unless they may debug.
+ */
+public class TrackLayerComponent implements Component {
+    // Longest run laid in one go
+    public int maxLength = 1024;
+
+    public Vector3i start;
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.blocks;
+
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.logic.characters.CharacterComponent;
+import org.terasology.logic.common.ActivateEvent;
+import org.terasology.logic.inventory.InventoryManager;
+import org.terasology.logic.inventory.InventoryUtils;
+import org.terasology.logic.inventory.ItemComponent;
+import org.terasology.logic.permission.PermissionManager;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.registry.In;
+import org.terasology.world.WorldProvider;
+import org.terasology.world.block.BlockComponent;
+import org.terasology.world.block.BlockManager;
+import org.terasology.world.block.family.BlockFamily;
+import org.terasology.world.block.items.BlockItemComponent;
+
+import java.util.List;
+
+@RegisterSystem(RegisterMode.AUTHORITY)
+public class TrackLayerSystem extends BaseComponentSystem {
+    private static final Logger logger = LoggerFactory.getLogger(TrackLayerSystem.class);
+
+    @In
+    private WorldProvider worldProvider;
+    @In
+    private RailsBlockFamilyUpdateSystem railsBlockFamilyUpdateSystem;
+    @In
+    private InventoryManager inventoryManager;
+    @In
+    private PermissionManager permissionManager;
+    @In
+    private BlockManager blockManager;
+
+    @ReceiveEvent(components = {TrackLayerComponent.class, ItemComponent.class})
+    public void onLayTrack(ActivateEvent event, EntityRef item) {
+        BlockComponent blockComponent = event.getTarget().getComponent(BlockComponent.class);
+        if (blockComponent == null) {
+            return;
+        }
+        TrackLayerComponent trackLayer = item.getComponent(TrackLayerComponent.class);
+        Vector3i target = new Vector3i(blockComponent.getPosition());
+        if (!RailsUpdatesFamily.isRail(worldProvider.getBlock(target))) {
+            // Track goes on top of the block used on
+            target.y += 1;
+        }
+
+        if (trackLayer.start == null) {
+            trackLayer.start = target;
+        } else {
+            EntityRef character = event.getInstigator();
+            BlockFamily rails = blockManager.getBlockFamily("rails:Rails");
+            // Players allowed to debug lay track for free; everyone else pays a rail from their inventory per block
+            boolean free = hasDebugPermission(character);
+            int length = free ? trackLayer.maxLength : Math.min(trackLayer.maxLength, countRails(character, rails));
+            List<Vector3i> path = TrackPath.polyline(Lists.newArrayList(trackLayer.start, target));
+            if (path.size() > length) {
+                path = path.subList(0, length);
+            }
+            int placed = railsBlockFamilyUpdateSystem.placeRails(path);
+            if (!free) {
+                takeRails(character, rails, placed);
+            }
+            logger.debug("Laid {} rails from {} to {}", placed, trackLayer.start, target);
+            trackLayer.start = null;
+        }
+        item.saveComponent(trackLayer);
+        event.consume();
+    }
+
+    private boolean hasDebugPermission(EntityRef character) {
+        CharacterComponent characterComponent = character.getComponent(CharacterComponent.class);
+        return characterComponent != null && permissionManager.hasPermission(characterComponent.controller, PermissionManager.DEBUG_PERMISSION);
+    }
+
+    private int countRails(EntityRef character, BlockFamily rails) {
+        int count = 0;
+        for (int slot = 0; slot < InventoryUtils.getSlotCount(character); slot++) {
+            EntityRef item = InventoryUtils.getItemAt(character, slot);
+            if (isRailItem(item, rails)) {
+                count += item.getComponent(ItemComponent.class).stackCount;
+            }
+        }
+        return count;
+    }
+
+    private void takeRails(EntityRef character, BlockFamily rails, int count) {
+        for (int slot = 0; slot < InventoryUtils.getSlotCount(character) && count > 0; slot++) {
+            EntityRef item = InventoryUtils.getItemAt(character, slot);
+            if (isRailItem(item, rails)) {
+                int taken = Math.min(count, item.getComponent(ItemComponent.class).stackCount);
+                inventoryManager.removeItem(character, character, item, true, taken);
+                count -= taken;
+            }
+        }
+    }
+
+    private boolean isRailItem(EntityRef item, BlockFamily rails) {
+        BlockItemComponent blockItem = item.getComponent(BlockItemComponent.class);
+        return blockItem != null && blockItem.blockFamily == rails;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.blocks;
+
+import com.google.common.collect.Lists;
+import org.terasology.math.geom.Vector3i;
+
+import java.util.List;
+
+/**
+ * Lays out the rail positions of a track to be placed with {@link RailsBlockFamilyUpdateSystem#placeRails}.
+ */
+public final class TrackPath {
+
+    private TrackPath() {
+        // Utility class only
+    }
+
+    /**
+     * Rails along a line through the given points. Each leg runs along x and then along z, and climbs or drops one
+     * block per step until it reaches the height of the next point, which the rails turn into slopes.
+     */
+    public static List<Vector3i> polyline(List<Vector3i> points) {
+        List<Vector3i> path = Lists.newArrayList();
+        if (points.isEmpty()) {
+            return path;
+        }
+        Vector3i current = new Vector3i(points.get(0));
+        path.add(new Vector3i(current));
+        for (Vector3i point : points.subList(1, points.size())) {
+            while (current.x != point.x) {
+                current.x += Integer.signum(point.x - current.x);
+                current.y += Integer.signum(point.y - current.y);
+                path.add(new Vector3i(current));
+            }
+            while (current.z != point.z) {
+                current.z += Integer.signum(point.z - current.z);
+                current.y += Integer.signum(point.y - current.y);
+                path.add(new Vector3i(current));
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Rails covering every block of a flat rectangle at the height of the first corner, such as a yard.
+     */
+    public static List<Vector3i> region(Vector3i corner, Vector3i oppositeCorner) {
+        List<Vector3i> path = Lists.newArrayList();
+        for (int x = Math.min(corner.x, oppositeCorner.x); x <= Math.max(corner.x, oppositeCorner.x); x++) {
+            for (int z = Math.min(corner.z, oppositeCorner.z); z <= Math.max(corner.z, oppositeCorner.z); z++) {
+                path.add(new Vector3i(x, corner.y, z));
+            }
+        }
+        return path;
+    }
+}
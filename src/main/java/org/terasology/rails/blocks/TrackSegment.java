@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.blocks;
+
+import org.terasology.math.Side;
+import org.terasology.math.TeraMath;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.math.geom.Vector3i;
+
+/**
+ * The path a vehicle follows through a single rail block, from the edge it enters at to the edge it leaves at,
+ * parameterised by arc length. Straight and sloped segments are lines, curves are quarter circles around the block corner.
+ * Positions are relative to the block centre; tables are precomputed once for every pair of sides.
+ */
+public final class TrackSegment {
+    private static final int SAMPLES = 17;
+    private static final float CURVE_RADIUS = 0.5f;
+    private static final TrackSegment[][][] SEGMENTS = new TrackSegment[Side.values().length][Side.values().length][3];
+
+    static {
+        for (Side from : Side.horizontalSides()) {
+            for (Side to : Side.horizontalSides()) {
+                if (from != to) {
+                    for (int rise = -1; rise <= 1; rise++) {
+                        SEGMENTS[from.ordinal()][to.ordinal()][rise + 1] = new TrackSegment(from, to, rise);
+                    }
+                }
+            }
+        }
+    }
+
+    private final Side from;
+    private final Side to;
+    private final boolean curve;
+    private final float length;
+
+    private final float startX;
+    private final float startZ;
+    private final float directionX;
+    private final float directionZ;
+    private final float centerX;
+    private final float centerZ;
+    private final float startAngle;
+    private final float sweep;
+
+    private final float[] xs = new float[SAMPLES];
+    private final float[] zs = new float[SAMPLES];
+    private final float[] yaws = new float[SAMPLES];
+    private final float[] pitches = new float[SAMPLES];
+
+    private TrackSegment(Side from, Side to, int rise) {
+        this.from = from;
+        this.to = to;
+        this.curve = from.reverse() != to;
+
+        Vector3i fromVector = from.getVector3i();
+        Vector3i toVector = to.getVector3i();
+        startX = fromVector.x * 0.5f;
+        startZ = fromVector.z * 0.5f;
+        directionX = toVector.x * 0.5f - startX;
+        directionZ = toVector.z * 0.5f - startZ;
+        centerX = (fromVector.x + toVector.x) * 0.5f;
+        centerZ = (fromVector.z + toVector.z) * 0.5f;
+        startAngle = (float) Math.atan2(startZ - centerZ, startX - centerX);
+        float endAngle = (float) Math.atan2(toVector.z * 0.5f - centerZ, toVector.x * 0.5f - centerX);
+        float turn = endAngle - startAngle;
+        if (turn > TeraMath.PI) {
+            turn -= 2 * TeraMath.PI;
+        } else if (turn < -TeraMath.PI) {
+            turn += 2 * TeraMath.PI;
+        }
+        sweep = turn;
+        length = curve ? Math.abs(sweep) * CURVE_RADIUS : (float) Math.sqrt(1 + rise * rise);
+
+        float pitch = curve ? 0 : -TeraMath.RAD_TO_DEG * (float) Math.atan2(rise, 1);
+        for (int i = 0; i < SAMPLES; i++) {
+            float t = i / (float) (SAMPLES - 1);
+            float tangentX;
+            float tangentZ;
+            if (curve) {
+                float angle = startAngle + sweep * t;
+                xs[i] = centerX + CURVE_RADIUS * (float) Math.cos(angle);
+                zs[i] = centerZ + CURVE_RADIUS * (float) Math.sin(angle);
+                tangentX = -Math.signum(sweep) * (float) Math.sin(angle);
+                tangentZ = Math.signum(sweep) * (float) Math.cos(angle);
+            } else {
+                xs[i] = startX + directionX * t;
+                zs[i] = startZ + directionZ * t;
+                tangentX = directionX;
+                tangentZ = directionZ;
+            }
+            float yaw = TeraMath.RAD_TO_DEG * (float) Math.atan2(tangentX, tangentZ);
+            // Kept continuous along the segment, so that neighbouring samples interpolate
+            if (i > 0) {
+                while (yaw - yaws[i - 1] > 180) {
+                    yaw -= 360;
+                }
+                while (yaw - yaws[i - 1] < -180) {
+                    yaw += 360;
+                }
+            }
+            yaws[i] = yaw;
+            pitches[i] = pitch;
+        }
+    }
+
+    /**
+     * @param rise 1 if the segment climbs a block from entry to exit, -1 if it descends one, 0 if it is level
+     */
+    public static TrackSegment get(Side from, Side to, int rise) {
+        return SEGMENTS[from.ordinal()][to.ordinal()][rise + 1];
+    }
+
+    public Side getFrom() {
+        return from;
+    }
+
+    public Side getTo() {
+        return to;
+    }
+
+    public boolean isCurve() {
+        return curve;
+    }
+
+    public float getLength() {
+        return length;
+    }
+
+    /**
+     * @return the arc length of the point on the segment closest to the given position, relative to the block centre
+     */
+    public float project(float x, float z) {
+        float t;
+        if (curve) {
+            float turn = (float) Math.atan2(z - centerZ, x - centerX) - startAngle;
+            if (turn > TeraMath.PI) {
+                turn -= 2 * TeraMath.PI;
+            } else if (turn < -TeraMath.PI) {
+                turn += 2 * TeraMath.PI;
+            }
+            t = turn / sweep;
+        } else {
+            t = ((x - startX) * directionX + (z - startZ) * directionZ) / (directionX * directionX + directionZ * directionZ);
+        }
+        return TeraMath.clamp(t, 0, 1) * length;
+    }
+
+    /**
+     * Sets x and z of the given vector to the point at the given arc length, relative to the block centre.
+     */
+    public void getPoint(float distance, Vector3f out) {
+        float sample = toSample(distance);
+        int i = (int) sample;
+        float t = sample - i;
+        out.x = xs[i] + (xs[i + 1] - xs[i]) * t;
+        out.z = zs[i] + (zs[i + 1] - zs[i]) * t;
+    }
+
+    /**
+     * @return the yaw, in degrees, of a vehicle travelling along the segment at the given arc length
+     */
+    public float getYaw(float distance) {
+        float sample = toSample(distance);
+        int i = (int) sample;
+        float yaw = yaws[i] + (yaws[i + 1] - yaws[i]) * (sample - i);
+        yaw %= 360;
+        return yaw < 0 ? yaw + 360 : yaw;
+    }
+
+    /**
+     * @return the pitch, in degrees, of a vehicle travelling along the segment at the given arc length
+     */
+    public float getPitch(float distance) {
+        float sample = toSample(distance);
+        int i = (int) sample;
+        return pitches[i] + (pitches[i + 1] - pitches[i]) * (sample - i);
+    }
+
+    private float toSample(float distance) {
+        return Math.min(TeraMath.clamp(distance / length, 0, 1) * (SAMPLES - 1), SAMPLES - 1.0001f);
+    }
+}
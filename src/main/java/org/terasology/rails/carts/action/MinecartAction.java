@@ -19,8 +19,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.terasology.entitySystem.entity.EntityManager;
 import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
 import org.terasology.entitySystem.event.EventPriority;
 import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.prefab.Prefab;
 import org.terasology.entitySystem.systems.BaseComponentSystem;
 import org.terasology.entitySystem.systems.RegisterMode;
 import org.terasology.entitySystem.systems.RegisterSystem;
@@ -30,6 +32,9 @@ import org.terasology.logic.characters.CharacterHeldItemComponent;
 import org.terasology.logic.characters.MovementMode;
 import org.terasology.logic.characters.events.SetMovementModeEvent;
 import org.terasology.logic.common.ActivateEvent;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.logic.console.commandSystem.annotations.Sender;
 import org.terasology.logic.health.DestroyEvent;
 import org.terasology.logic.inventory.InventoryComponent;
 import org.terasology.logic.inventory.InventoryManager;
@@ -41,17 +46,19 @@ import org.terasology.math.Side;
 import org.terasology.math.geom.Quat4f;
 import org.terasology.math.geom.Vector3f;
 import org.terasology.math.geom.Vector3i;
-import org.terasology.physics.HitResult;
-import org.terasology.physics.Physics;
+import org.terasology.network.ClientComponent;
 import org.terasology.physics.StandardCollisionGroup;
 import org.terasology.physics.components.RigidBodyComponent;
 import org.terasology.physics.events.CollideEvent;
 import org.terasology.physics.events.ImpulseEvent;
 import org.terasology.rails.blocks.ConnectsToRailsComponent;
+import org.terasology.rails.blocks.RailsUpdatesFamily;
 import org.terasology.rails.carts.components.LocomotiveComponent;
 import org.terasology.rails.carts.components.RailVehicleComponent;
+import org.terasology.rails.carts.components.WheelsComponent;
 import org.terasology.rails.carts.components.WrenchComponent;
 import org.terasology.rails.carts.controllers.MinecartFactory;
+import org.terasology.rails.carts.controllers.MinecartSystem;
 import org.terasology.rails.carts.utils.MinecartHelper;
 import org.terasology.registry.In;
 import org.terasology.rendering.logic.MeshComponent;
@@ -63,6 +70,9 @@ import org.terasology.world.block.items.BlockItemFactory;
 
 @RegisterSystem(RegisterMode.AUTHORITY)
 public class MinecartAction extends BaseComponentSystem {
+    // How far along the track a minecart looks for the vehicle to couple behind
+    private static final float JOIN_DISTANCE = 2.5f;
+
     @In
     private EntityManager entityManager;
     @In
@@ -72,7 +82,7 @@ public class MinecartAction extends BaseComponentSystem {
     @In
     private BlockManager blockManager;
     @In
-    private Physics physics;
+    private MinecartSystem minecartSystem;
 
     private MinecartFactory railVehicleFactory;
     private final Logger logger = LoggerFactory.getLogger(MinecartAction.class);
@@ -104,6 +114,31 @@ public class MinecartAction extends BaseComponentSystem {
         }
     }
 
+    /**
+     * Vehicles saved before wheels became client-side still carry wheel entities; those are dropped in favour of the
+     * wheels from the vehicle's prefab.
+     */
+    @ReceiveEvent(components = {RailVehicleComponent.class})
+    public void onRailVehicleActivated(OnActivatedComponent event, EntityRef entity) {
+        RailVehicleComponent railVehicle = entity.getComponent(RailVehicleComponent.class);
+        if (!railVehicle.vehicles.isEmpty()) {
+            for (EntityRef vehicle : railVehicle.vehicles) {
+                if (vehicle != null && !vehicle.equals(EntityRef.NULL)) {
+                    vehicle.destroy();
+                }
+            }
+            railVehicle.vehicles.clear();
+            entity.saveComponent(railVehicle);
+        }
+
+        Prefab prefab = entity.getParentPrefab();
+        if (!entity.hasComponent(WheelsComponent.class) && prefab != null && prefab.hasComponent(WheelsComponent.class)) {
+            WheelsComponent wheels = new WheelsComponent();
+            wheels.wheels.addAll(prefab.getComponent(WheelsComponent.class).wheels);
+            entity.addComponent(wheels);
+        }
+    }
+
     @ReceiveEvent
     public void onPlayerSpawn(OnPlayerSpawnedEvent event, EntityRef player, InventoryComponent inventory) {
         BlockItemFactory blockFactory = new BlockItemFactory(entityManager);
@@ -154,12 +189,6 @@ public class MinecartAction extends BaseComponentSystem {
             railVehicle.characterInsideCart = null;
         }
 
-        for (EntityRef vehicle : railVehicle.vehicles) {
-            if (vehicle != null && !vehicle.equals(EntityRef.NULL)) {
-                vehicle.destroy();
-            }
-        }
-
         entity.saveComponent(railVehicle);
     }
 
@@ -178,9 +207,9 @@ public class MinecartAction extends BaseComponentSystem {
 
         EntityRef targetEntity = event.getTarget();
         BlockComponent blockComponent = targetEntity.getComponent(BlockComponent.class);
-        ConnectsToRailsComponent connectsToRailsComponent = targetEntity.getComponent(ConnectsToRailsComponent.class);
 
-        if (blockComponent == null || connectsToRailsComponent == null || !connectsToRailsComponent.type.equals(ConnectsToRailsComponent.RAILS.PLANE)) {
+        if (blockComponent == null
+                || RailsUpdatesFamily.getRailType(worldProvider.getBlock(blockComponent.getPosition())) != ConnectsToRailsComponent.RAILS.PLANE) {
             return;
         }
 
@@ -193,6 +222,45 @@ public class MinecartAction extends BaseComponentSystem {
         event.consume();
     }
 
+    @Command(shortDescription = "Sends the train you ride to a rail",
+            helpText = "Junctions on the way are taken towards the rail at the given position. "
+                    + "Without a position, the train takes junctions as they are set again.",
+            runOnServer = true)
+    public String trainDestination(@Sender EntityRef sender,
+                                   @CommandParam(value = "x", required = false) Integer x,
+                                   @CommandParam(value = "y", required = false) Integer y,
+                                   @CommandParam(value = "z", required = false) Integer z) {
+        ClientComponent client = sender.getComponent(ClientComponent.class);
+        EntityRef locomotive = client != null ? getRiddenLocomotive(client.character) : null;
+        if (locomotive == null) {
+            return "You are not riding a train";
+        }
+        LocomotiveComponent locomotiveComponent = locomotive.getComponent(LocomotiveComponent.class);
+        if (x == null || y == null || z == null) {
+            locomotiveComponent.destination = null;
+            locomotive.saveComponent(locomotiveComponent);
+            return "Destination cleared";
+        }
+        locomotiveComponent.destination = new Vector3i(x, y, z);
+        locomotive.saveComponent(locomotiveComponent);
+        return "Destination set to " + locomotiveComponent.destination;
+    }
+
+    private EntityRef getRiddenLocomotive(EntityRef character) {
+        for (EntityRef entity : entityManager.getEntitiesWith(RailVehicleComponent.class)) {
+            RailVehicleComponent railVehicle = entity.getComponent(RailVehicleComponent.class);
+            if (railVehicle.characterInsideCart == null || !railVehicle.characterInsideCart.equals(character)) {
+                continue;
+            }
+            if (entity.hasComponent(LocomotiveComponent.class)) {
+                return entity;
+            }
+            return railVehicle.locomotiveRef != null && railVehicle.locomotiveRef.hasComponent(LocomotiveComponent.class)
+                    ? railVehicle.locomotiveRef : null;
+        }
+        return null;
+    }
+
     @ReceiveEvent(components = {WrenchComponent.class, ItemComponent.class})
     public void joinMinecart(ActivateEvent event, EntityRef item) {
         EntityRef targetEntity = event.getTarget();
@@ -209,7 +277,7 @@ public class MinecartAction extends BaseComponentSystem {
                         railVehicleComponent.locomotiveRef = null;
                     }
                 } else {
-                    EntityRef parent = checkMineCartJoin(railVehicleComponent, location.getWorldPosition());
+                    EntityRef parent = checkMineCartJoin(targetEntity, railVehicleComponent, location.getWorldPosition());
                     if (parent != null) {
                         RailVehicleComponent parentRailVehicleComponent = parent.getComponent(RailVehicleComponent.class);
                         if (parentRailVehicleComponent.locomotiveRef != null || parentRailVehicleComponent.type.equals(RailVehicleComponent.Types.locomotive)) {
@@ -257,7 +325,7 @@ public class MinecartAction extends BaseComponentSystem {
                 LocationComponent location = newTarget.getComponent(LocationComponent.class);
                 if (railVehicleComponent.parentNode != null) {
                     setSelectMaterial(newTarget, "rails:minecart-unjoin");
-                } else if (checkMineCartJoin(railVehicleComponent, location.getWorldPosition()) != null) {
+                } else if (checkMineCartJoin(newTarget, railVehicleComponent, location.getWorldPosition()) != null) {
                     setSelectMaterial(newTarget, "rails:minecart-join");
                 }
             }
@@ -265,18 +333,12 @@ public class MinecartAction extends BaseComponentSystem {
     }
 
     private void setSelectMaterial(EntityRef railVehicle, String urlMaterial) {
-        RailVehicleComponent railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
         MeshComponent mesh = railVehicle.getComponent(MeshComponent.class);
         mesh.material = Assets.getMaterial(urlMaterial).get();
-        for (EntityRef vehicle : railVehicleComponent.vehicles) {
-            MeshComponent meshVehicle = vehicle.getComponent(MeshComponent.class);
-            meshVehicle.material = Assets.getMaterial(urlMaterial).get();
-            vehicle.saveComponent(meshVehicle);
-        }
         railVehicle.saveComponent(mesh);
     }
 
-    private EntityRef checkMineCartJoin(RailVehicleComponent railVehicleComponent, Vector3f position) {
+    private EntityRef checkMineCartJoin(EntityRef railVehicle, RailVehicleComponent railVehicleComponent, Vector3f position) {
         Vector3f pathDirection = new Vector3f(railVehicleComponent.pathDirection);
         pathDirection.y = 0;
 
@@ -286,10 +348,9 @@ public class MinecartAction extends BaseComponentSystem {
         Vector3f[] directions = {pathDirection, pathDirectionNegate};
 
         for (Vector3f dir : directions) {
-            HitResult hit = physics.rayTrace(position, dir, 2.5f, StandardCollisionGroup.DEFAULT, StandardCollisionGroup.WORLD);
-            EntityRef entity = hit.getEntity();
+            EntityRef entity = minecartSystem.getVehicleIndex().getNextAlong(position, dir, JOIN_DISTANCE, railVehicle);
 
-            if (entity.hasComponent(RailVehicleComponent.class)) {
+            if (entity != null && entity.hasComponent(RailVehicleComponent.class)) {
                 RailVehicleComponent mn = entity.getComponent(RailVehicleComponent.class);
                 LocationComponent lc = entity.getComponent(LocationComponent.class);
                 if (mn.type.equals(RailVehicleComponent.Types.locomotive)) {
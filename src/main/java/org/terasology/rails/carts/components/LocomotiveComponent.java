@@ -18,9 +18,13 @@ package org.terasology.rails.carts.components;
 import com.google.common.collect.Lists;
 import org.terasology.entitySystem.Component;
 import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.math.geom.Vector3i;
 
 import java.util.List;
 
 public class LocomotiveComponent implements Component {
     public List<EntityRef> childs = Lists.newArrayList();
+
+    // Rail the train is routed to at junctions, or null to take junctions as they are set
+    public Vector3i destination;
 }
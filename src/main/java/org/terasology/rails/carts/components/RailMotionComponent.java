@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.carts.components;
+
+import org.terasology.entitySystem.Component;
+import org.terasology.math.Side;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.network.Replicate;
+
+/**
+ * Compact description of a rail vehicle's motion, from which clients predict its position themselves.
+ * The authority only saves it when the vehicle enters another segment or its speed or drive changes noticeably.
+ */
+public class RailMotionComponent implements Component {
+    // Increased with every save, so clients can tell a new motion from a snapshot of the location
+    @Replicate
+    public int revision;
+
+    @Replicate
+    public boolean onRails;
+
+    // The segment: rail block, and the sides the vehicle enters and leaves it through
+    @Replicate
+    public Vector3i block = new Vector3i();
+
+    @Replicate
+    public Side entry;
+
+    @Replicate
+    public Side exit;
+
+    // Distance travelled along the segment
+    @Replicate
+    public float offset;
+
+    @Replicate
+    public float speed;
+
+    @Replicate
+    public float drive;
+
+    @Replicate
+    public float heightAboveRail;
+}
@@ -31,6 +31,7 @@ public class RailVehicleComponent implements Component {
     @Replicate
     public Types type = Types.minecart;
 
+    // Wheel entities of vehicles saved before wheels moved to WheelsComponent; emptied when such a vehicle loads
     @Replicate
     public List<EntityRef> vehicles = Lists.newArrayList();
 
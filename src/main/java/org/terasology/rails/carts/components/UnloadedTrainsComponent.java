@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.carts.components;
+
+import com.google.common.collect.Lists;
+import org.terasology.entitySystem.Component;
+import org.terasology.math.Side;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.reflection.MappedContainer;
+
+import java.util.List;
+
+/**
+ * Trains that left the loaded area, kept on the world entity as plain records and moved along the rail graph until
+ * they are back where they can be turned into entities again.
+ */
+public class UnloadedTrainsComponent implements Component {
+    public List<UnloadedTrain> trains = Lists.newArrayList();
+
+    @MappedContainer
+    public static class UnloadedTrain {
+        // Vehicle types, the leading vehicle first
+        public List<RailVehicleComponent.Types> consist = Lists.newArrayList();
+        // Rail blocks the train covers, the leading one first
+        public List<Vector3i> blocks = Lists.newArrayList();
+        // Side the train leaves its leading block through, and how far it has got towards it
+        public Side exit;
+        public float progress;
+        public float speed;
+        public float drive;
+        public Vector3i destination;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.carts.components;
+
+import com.google.common.collect.Lists;
+import org.terasology.entitySystem.Component;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.network.Replicate;
+import org.terasology.reflection.MappedContainer;
+
+import java.util.List;
+
+/**
+ * The wheels of a rail vehicle. Wheels have no entities on the authority; each client creates local ones to show them.
+ */
+public class WheelsComponent implements Component {
+    @Replicate
+    public List<Wheel> wheels = Lists.newArrayList();
+
+    @MappedContainer
+    public static class Wheel {
+        // Offset from the vehicle, in the vehicle's local space
+        public Vector3f position = new Vector3f();
+        public float scale = 1f;
+    }
+}
@@ -15,23 +15,33 @@
  */
 package org.terasology.rails.carts.controllers;
 
-import org.terasology.entitySystem.entity.EntityRef;
 import org.terasology.math.geom.Vector3i;
 import org.terasology.math.geom.Vector3f;
 import org.terasology.rails.blocks.ConnectsToRailsComponent;
+import org.terasology.rails.blocks.RailNode;
 import org.terasology.world.block.Block;
 
 public class BlockInfo {
     private Block block;
     private Vector3i blockPosition = new Vector3i();
-    private ConnectsToRailsComponent rails;
-    private Vector3f hitPoint;
-
-    public BlockInfo(Block block, Vector3i blockPosition, EntityRef entity, ConnectsToRailsComponent component, Vector3f hitPoint) {
-        this.block = block;
-        this.rails = component;
-        this.blockPosition = blockPosition;
-        this.hitPoint = hitPoint;
+    private RailNode rails;
+    private Vector3f hitPoint = new Vector3f();
+
+    public void set(Block newBlock, Vector3i newBlockPosition, RailNode node, float hitX, float hitY, float hitZ) {
+        set(newBlock, newBlockPosition.x, newBlockPosition.y, newBlockPosition.z, hitX, hitY, hitZ);
+        this.rails = node;
+    }
+
+    public void set(Block newBlock, int x, int y, int z, float hitX, float hitY, float hitZ) {
+        this.block = newBlock;
+        this.rails = null;
+        this.blockPosition.set(x, y, z);
+        this.hitPoint.set(hitX, hitY, hitZ);
+    }
+
+    public void clear() {
+        this.block = null;
+        this.rails = null;
     }
 
     public boolean isEmptyBlock() {
@@ -44,7 +54,7 @@ public class BlockInfo {
 
     public ConnectsToRailsComponent.RAILS getType() {
         if (isRails()) {
-            return rails.type;
+            return rails.getType();
         } else {
             return null;
         }
@@ -55,26 +65,31 @@ public class BlockInfo {
     }
 
     public Vector3i getBlockPosition() {
-        return blockPosition;
+        return block != null ? blockPosition : null;
+    }
+
+    public RailNode getNode() {
+        return rails;
     }
 
     public boolean isCorner() {
-        return  isRails()
-                && (rails.type == ConnectsToRailsComponent.RAILS.CURVE
-                || rails.type == ConnectsToRailsComponent.RAILS.TEE
-                || rails.type == ConnectsToRailsComponent.RAILS.TEE_INVERSED);
+        return isRails() && rails.isCorner();
+    }
+
+    public boolean isSwitched() {
+        return isRails() && rails.isSwitched();
     }
 
     public boolean isSlope() {
-        return isRails() && rails.type == ConnectsToRailsComponent.RAILS.SLOPE;
+        return isRails() && rails.isSlope();
     }
 
     public boolean isIntersection() {
-        return isRails() && rails.type == ConnectsToRailsComponent.RAILS.INTERSECTION;
+        return isRails() && rails.getType() == ConnectsToRailsComponent.RAILS.INTERSECTION;
     }
 
     public boolean isSameBlock(Vector3f anotherBlock) {
-        if (blockPosition.lengthSquared() == 0 || anotherBlock == null) {
+        if (block == null || blockPosition.lengthSquared() == 0 || anotherBlock == null) {
             return false;
         }
         return blockPosition.x == anotherBlock.x && blockPosition.y == anotherBlock.y && blockPosition.z == anotherBlock.z;
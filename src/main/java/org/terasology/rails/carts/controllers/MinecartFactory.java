@@ -25,8 +25,8 @@ import org.terasology.logic.location.LocationComponent;
 import org.terasology.math.geom.Quat4f;
 import org.terasology.math.geom.Vector3f;
 import org.terasology.rails.carts.action.MinecartAction;
+import org.terasology.rails.carts.components.LocomotiveComponent;
 import org.terasology.rails.carts.components.RailVehicleComponent;
-import org.terasology.rails.carts.components.WheelComponent;
 
 public class MinecartFactory {
     private EntityManager entityManager;
@@ -64,8 +64,6 @@ public class MinecartFactory {
             railVehicle.drive = 0;
             railVehicle.pathDirection = new Vector3f();
             railVehicle.direction = new Vector3f(1f, 1f, 1f);
-            attachVehicle(entity, new Vector3f(-0.125f, -1.5f, 0.55f), 1f);
-            attachVehicle(entity, new Vector3f(-0.125f, -1.5f, -0.55f), 1f);
             entity.saveComponent(railVehicle);
         }
         return entity;
@@ -84,9 +82,6 @@ public class MinecartFactory {
             railVehicle.drive = 0;
             railVehicle.pathDirection = new Vector3f();
             railVehicle.direction = new Vector3f(1f, 1f, 1f);
-            attachVehicle(entity, new Vector3f(-0.125f, -1.2f, 0.55f), 0.75f);
-            attachVehicle(entity, new Vector3f(-0.125f, -1.2f, 0), 0.75f);
-            attachVehicle(entity, new Vector3f(-0.125f, -1.2f, -0.55f), 0.75f);
 
             //add pipe
             EntityRef pipeEnity = entityManager.create("rails:pipe", position);
@@ -97,22 +92,23 @@ public class MinecartFactory {
         return entity;
     }
 
-    public void attachVehicle(EntityRef railVehicleEntity, Vector3f position, float scale) {
-        RailVehicleComponent railVehicle = railVehicleEntity.getComponent(RailVehicleComponent.class);
-        EntityRef wheel = entityManager.create("rails:wheel");
-        Location.attachChild(railVehicleEntity, wheel, position, new Quat4f());
-        if (scale != 1) {
-            LocationComponent locationComponent = wheel.getComponent(LocationComponent.class);
-            locationComponent.setLocalScale(scale);
-            wheel.saveComponent(locationComponent);
-        }
-        WheelComponent wheelComponent = wheel.getComponent(WheelComponent.class);
-        wheelComponent.parent = railVehicleEntity;
-        wheelComponent.position = position;
-        wheelComponent.scale = scale;
-        wheel.saveComponent(wheelComponent);
-        railVehicle.vehicles.add(wheel);
-        railVehicleEntity.saveComponent(railVehicle);
+    /**
+     * Couples a wagon behind the parent vehicle of a locomotive's train.
+     */
+    public void couple(EntityRef locomotive, EntityRef parent, EntityRef wagon) {
+        RailVehicleComponent wagonComponent = wagon.getComponent(RailVehicleComponent.class);
+        wagonComponent.drive = 0;
+        wagonComponent.parentNode = parent;
+        wagonComponent.locomotiveRef = locomotive;
+        wagon.saveComponent(wagonComponent);
+
+        RailVehicleComponent parentComponent = parent.getComponent(RailVehicleComponent.class);
+        parentComponent.childNode = wagon;
+        parent.saveComponent(parentComponent);
+
+        LocomotiveComponent locomotiveComponent = locomotive.getComponent(LocomotiveComponent.class);
+        locomotiveComponent.childs.add(wagon);
+        locomotive.saveComponent(locomotiveComponent);
     }
 
     public void setEntityManager(EntityManager entityManager) {
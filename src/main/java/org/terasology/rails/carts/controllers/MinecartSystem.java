@@ -15,10 +15,12 @@
  */
 package org.terasology.rails.carts.controllers;
 
-import com.google.common.collect.Maps;
-import org.terasology.audio.events.PlaySoundEvent;
+import com.google.common.collect.Lists;
 import org.terasology.entitySystem.entity.EntityManager;
 import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnChangedComponent;
 import org.terasology.entitySystem.event.EventPriority;
 import org.terasology.entitySystem.event.ReceiveEvent;
 import org.terasology.entitySystem.systems.BaseComponentSystem;
@@ -27,226 +29,526 @@ import org.terasology.entitySystem.systems.RegisterSystem;
 import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
 import org.terasology.input.binds.movement.ForwardsMovementAxis;
 import org.terasology.input.binds.movement.VerticalMovementAxis;
+import org.terasology.logic.characters.CharacterComponent;
 import org.terasology.logic.characters.events.ActivationRequest;
 import org.terasology.logic.common.ActivateEvent;
 import org.terasology.logic.inventory.InventoryManager;
 import org.terasology.logic.location.LocationComponent;
 import org.terasology.logic.particles.BlockParticleEffectComponent;
 import org.terasology.logic.players.LocalPlayer;
-import org.terasology.math.Side;
-import org.terasology.math.TeraMath;
 import org.terasology.math.geom.Quat4f;
 import org.terasology.math.geom.Vector3f;
-import org.terasology.math.geom.Vector3i;
 import org.terasology.network.ClientComponent;
-import org.terasology.physics.HitResult;
-import org.terasology.physics.Physics;
-import org.terasology.physics.StandardCollisionGroup;
 import org.terasology.physics.components.RigidBodyComponent;
+import org.terasology.physics.engine.PhysicsEngine;
+import org.terasology.physics.engine.RigidBody;
 import org.terasology.physics.events.ChangeVelocityEvent;
+import org.terasology.physics.events.CollideEvent;
+import org.terasology.physics.events.ImpulseEvent;
 import org.terasology.rails.blocks.ConnectsToRailsComponent;
+import org.terasology.rails.blocks.RailGraph;
+import org.terasology.rails.blocks.RailRouter;
+import org.terasology.rails.blocks.RailNode;
+import org.terasology.rails.blocks.TrackSegment;
+import org.terasology.rails.carts.components.LocomotiveComponent;
+import org.terasology.rails.carts.components.RailMotionComponent;
 import org.terasology.rails.carts.components.RailVehicleComponent;
-import org.terasology.rails.carts.utils.MinecartHelper;
+import org.terasology.rails.metrics.RailMetric;
+import org.terasology.rails.metrics.RailMetrics;
 import org.terasology.registry.In;
+import org.terasology.registry.Share;
 import org.terasology.rendering.logic.MeshComponent;
-import org.terasology.utilities.Assets;
 import org.terasology.world.WorldProvider;
-import org.terasology.world.block.Block;
+import org.terasology.world.OnChangedBlock;
+import org.terasology.world.block.BlockComponent;
 
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 @RegisterSystem(RegisterMode.AUTHORITY)
+@Share(MinecartSystem.class)
 public class MinecartSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
-    private static final Vector3f FREE_MOTION   = new Vector3f(1f, 1f, 1f);
-    private static final Vector3f LOCKED_MOTION = new Vector3f(0f, 0f, 0f);
-    private static final Vector3f UNDER_MINECART_DIRECTION = new Vector3f(0f, -1f, 0f);
+    static final Vector3f FREE_MOTION   = new Vector3f(1f, 1f, 1f);
+    static final Vector3f LOCKED_MOTION = new Vector3f(0f, 0f, 0f);
+    private static final int SLEEP_TICKS = 30;
+    private static final float REST_SPEED_SQUARED = 0.0001f;
+    // The rail simulation runs at a fixed rate, independent of the frame rate
+    static final float RAIL_STEP = 1f / 60f;
+    private static final int MAX_RAIL_STEPS = 5;
+    private static final int MAX_TRAIN_LENGTH = 256;
+    // Below this many vehicles or trains, handing the step to other threads costs more than it saves
+    private static final int PARALLEL_THRESHOLD = 64;
+    private static final int PARALLEL_BATCH = 16;
+    // With client prediction, vehicle and location components are only saved this often; in between clients
+    // follow the rails themselves from the vehicle's RailMotionComponent
+    private static final int SNAPSHOT_TICKS = 60;
+    private static final float SPEED_TOLERANCE = 0.25f;
+    // Level of detail by horizontal distance to the nearest player: vehicles further away are stepped less often,
+    // over all the time since their last step, and without effects
+    private static final float NEAR_DISTANCE = 32f;
+    private static final float MID_DISTANCE = 96f;
+    private static final int MID_INTERVAL = 3;
+    private static final int FAR_INTERVAL = 12;
+    // Vehicles this close to a changed block on every axis are woken
+    private static final float WAKE_DISTANCE = 1.5f;
 
     @In
     private EntityManager entityManager;
     @In
     private WorldProvider worldProvider;
     @In
-    private Physics physics;
-    @In
     private LocalPlayer localPlayer;
     @In
     private InventoryManager inventoryManager;
     @In
-    private org.terasology.engine.Time time;
-
-    private MoveDescriptor moveDescriptor;
-    private Map<EntityRef, Long> soundStack = Maps.newHashMap();
-    private Map<EntityRef, MotionState> moveStates = Maps.newHashMap();
+    private RailGraph railGraph;
+    @In
+    private RailRouter railRouter;
+    @In
+    private RailMetrics metrics;
+    @In
+    private PhysicsEngine physics;
+
+    private MotionStateStore motionStates = new MotionStateStore();
+    private RailVehicleIndex vehicleIndex = new RailVehicleIndex();
+    private float stepAccumulator;
+    private boolean parallel = true;
+    private boolean clientPrediction = true;
+    private boolean levelOfDetail = true;
+    private long stepCount;
+    private long lastStepTime;
+    private ForkJoinPool pool;
+    private ThreadLocal<RailVehicleStepper> steppers;
+    // Every stepper handed out by steppers, so their metrics can be collected
+    private final List<RailVehicleStepper> allSteppers = new CopyOnWriteArrayList<>();
+    private int componentSaves;
+    private int eventsSent;
+    private int deferred;
+    // Vehicles and trains stepped this tick; each one is independent of the others
+    private final List<MotionState> units = Lists.newArrayList();
+    private final List<Vector3f> playerPositions = Lists.newArrayList();
+    private int playerCount;
+    private final List<EntityRef> nearbyVehicles = Lists.newArrayList();
+
+    // Scratch state reused for every vehicle so a tick does not allocate
+    private final Vector3f eventVelocity = new Vector3f();
+    private final Vector3f bodyPosition = new Vector3f();
+    private final Quat4f bodyRotation = new Quat4f();
+    // Sent synchronously and copied by the physics system, so a single instance can be reused
+    private final ChangeVelocityEvent changeVelocityEvent = new ChangeVelocityEvent(eventVelocity);
 
     @Override
     public void initialise() {
-        moveDescriptor = new MoveDescriptor();
+        pool = new ForkJoinPool();
+        steppers = new ThreadLocal<RailVehicleStepper>() {
+            @Override
+            protected RailVehicleStepper initialValue() {
+                RailVehicleStepper stepper = new RailVehicleStepper(railGraph, railRouter, worldProvider);
+                stepper.timing = metrics.isTiming();
+                allSteppers.add(stepper);
+                return stepper;
+            }
+        };
     }
 
     @Override
     public void update(float delta) {
-        for (EntityRef railVehicle : entityManager.getEntitiesWith(RailVehicleComponent.class)) {
-            RailVehicleComponent railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
-            if (railVehicleComponent.isCreated) {
-                moveRailVehicle(railVehicle);
-            }
+        stepAccumulator += delta;
+        int steps = (int) (stepAccumulator / RAIL_STEP);
+        if (steps == 0) {
+            return;
         }
+        stepAccumulator -= steps * RAIL_STEP;
+        // Time beyond this is dropped rather than caught up on, or a slow server would only fall further behind
+        step(Math.min(steps, MAX_RAIL_STEPS) * RAIL_STEP);
     }
 
-    private MotionState getCurrentState(EntityRef railVehicle) {
-        MotionState motionState;
-        if (!moveStates.containsKey(railVehicle)) {
-            motionState = new MotionState();
-            motionState.railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
-            moveStates.put(railVehicle, motionState);
+    /**
+     * Advances every awake vehicle by the given time.
+     */
+    private void step(float delta) {
+        long start = System.nanoTime();
+        stepCount++;
+        for (RailVehicleStepper stepper : allSteppers) {
+            stepper.timing = metrics.isTiming();
+        }
+        gather(delta);
+        if (parallel && units.size() >= PARALLEL_THRESHOLD) {
+            pool.invoke(new StepTask(0, units.size()));
         } else {
-            motionState = moveStates.get(railVehicle);
+            RailVehicleStepper stepper = steppers.get();
+            for (MotionState unit : units) {
+                stepper.step(unit, unit.stepDelta);
+            }
+        }
+        for (MotionState unit : units) {
+            commit(unit);
         }
-        return motionState;
+        lastStepTime = System.nanoTime() - start;
+        recordMetrics(lastStepTime);
     }
 
-    private void moveRailVehicle(EntityRef railVehicle) {
+    @Override
+    public void shutdown() {
+        pool.shutdown();
+        motionStates.clear();
+        vehicleIndex.clear();
+        units.clear();
+        allSteppers.clear();
+    }
+
+    @ReceiveEvent(components = {RailVehicleComponent.class})
+    public void onRailVehicleActivated(OnActivatedComponent event, EntityRef railVehicle) {
         LocationComponent location = railVehicle.getComponent(LocationComponent.class);
-        RigidBodyComponent rigidBody = railVehicle.getComponent(RigidBodyComponent.class);
-        RailVehicleComponent railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
+        if (location != null) {
+            vehicleIndex.update(railVehicle, location.getWorldPosition());
+        }
+        wake(railVehicle);
+    }
 
-        Vector3f position = location.getWorldPosition();
-        Vector3f velocity = new Vector3f(rigidBody.velocity);
-        int slopeFactor = 0;
-        MotionState motionState = getCurrentState(railVehicle);
-        motionState.angularFactor.set(rigidBody.angularFactor);
-
-        if (!railVehicleComponent.pathDirection.equals(FREE_MOTION) || !railVehicleComponent.pathDirection.equals(LOCKED_MOTION)) {
-            BlockInfo blockPossibleSlope = getBlockInDirection(position, new Vector3f(railVehicleComponent.direction.x , -1f, railVehicleComponent.direction.z), 1.2f);
-            if (blockPossibleSlope.isRails() && blockPossibleSlope.isSlope()) {
-                slopeFactor = 1;
-                motionState.nextBlockIsSlope = true;
-            }
+    @ReceiveEvent(components = {RailVehicleComponent.class})
+    public void onRailVehicleChanged(OnChangedComponent event, EntityRef railVehicle) {
+        // Drive changes, coupling and placement all save the component
+        wake(railVehicle);
+    }
+
+    @ReceiveEvent(components = {RailVehicleComponent.class})
+    public void onRailVehicleImpulse(ImpulseEvent event, EntityRef railVehicle) {
+        wake(railVehicle);
+    }
+
+    @ReceiveEvent(components = {RailVehicleComponent.class})
+    public void onRailVehicleBump(CollideEvent event, EntityRef railVehicle) {
+        EntityRef other = event.getOtherEntity();
+        if (other.hasComponent(CharacterComponent.class) || other.hasComponent(RailVehicleComponent.class)) {
+            wake(railVehicle);
         }
+    }
 
-        BlockInfo currentBlock = getBlockInDirection(position, UNDER_MINECART_DIRECTION, 3.3f);
+    @ReceiveEvent(components = {BlockComponent.class})
+    public void onBlockChanged(OnChangedBlock event, EntityRef blockEntity) {
+        nearbyVehicles.clear();
+        for (EntityRef railVehicle : vehicleIndex.getVehiclesNear(event.getBlockPosition().toVector3f(), WAKE_DISTANCE, nearbyVehicles)) {
+            wake(railVehicle);
+        }
+    }
 
-        if (!currentBlock.isEmptyBlock()) {
-            if (slopeFactor == 0 && currentBlock.isRails() && currentBlock.isSlope()) {
-                Vector3f distance = new Vector3f(currentBlock.getBlockPosition().x, currentBlock.getBlockPosition().y, currentBlock.getBlockPosition().z);
-                distance.sub(motionState.prevBlockPosition);
-                if (distance.y < 0) {
-                    slopeFactor = -1;
-                } else {
-                    slopeFactor = 1;
-                    motionState.nextBlockIsSlope = false;
-                }
-            }
+    @ReceiveEvent(components = {RailVehicleComponent.class})
+    public void onRailVehicleDeactivated(BeforeDeactivateComponent event, EntityRef railVehicle) {
+        // Covers both destruction and unloading of the vehicle
+        motionStates.remove(railVehicle);
+        vehicleIndex.remove(railVehicle);
+    }
 
-            if (slopeFactor == 0) {
-                motionState.nextBlockIsSlope = false;
-            }
+    public int getMotionStateCount() {
+        return motionStates.size();
+    }
 
-            if (currentBlock.isRails()) {
-                boolean isSameBlock = currentBlock.isSameBlock(motionState.currentBlockPosition);
-                if (isSameBlock && !isLowSpeed(railVehicleComponent.drive, velocity.length()) && slopeFactor == 0 && !currentBlock.isCorner() && railVehicleComponent.parentNode == null) {
-                    motionState.setCurrentState(railVehicleComponent.pathDirection, railVehicleComponent.direction, motionState.angularFactor, currentBlock.getBlockPosition(), MotionState.PositionStatus.ON_THE_PATH);
-                } else {
-                    if (!isSameBlock) {
-                        motionState.yawSign = 0;
-                        railVehicleComponent.prevYaw = -1;
-                    }
-
-                    motionState.setCurrentBlockPosition(currentBlock.getBlockPosition().toVector3f());
-                    moveDescriptor.calculateDirection(velocity, currentBlock, railVehicleComponent, motionState, position, slopeFactor);
-                    motionState.setCurrentState(railVehicleComponent.pathDirection, railVehicleComponent.direction, LOCKED_MOTION, currentBlock.getBlockPosition(), MotionState.PositionStatus.ON_THE_PATH);
-                    if (motionState.prevBlockPosition.length() > 0) {
-                        Vector3i prevBlockPostion = new Vector3i(motionState.prevBlockPosition);
-
-                        if (velocity.y > 0 && slopeFactor < 1) {
-                            Block prevblock = worldProvider.getBlock(prevBlockPostion);
-                            EntityRef prevBlockEntity = prevblock.getEntity();
-                            ConnectsToRailsComponent prevBlockRailsComponent = prevBlockEntity.getComponent(ConnectsToRailsComponent.class);
-
-                            if (prevBlockRailsComponent != null && prevBlockRailsComponent.type == ConnectsToRailsComponent.RAILS.SLOPE) {
-                                velocity.y *= -1;
-                            }
-                        }
-                    }
-                    if (!isSameBlock) {
-                        //playSound(railVehicle, velocity, railVehicleComponent.drive);
-                        showSmoke(railVehicleComponent);
-                    }
-                }
+    public int getAwakeCount() {
+        return motionStates.awakeSize();
+    }
 
-                correctPositionAndRotation(railVehicle, currentBlock);
-                railVehicle.send(new ChangeVelocityEvent(velocity));
-            } else {
-                railVehicleComponent.direction.y = 0;
-                motionState.setCurrentState(FREE_MOTION, railVehicleComponent.direction, FREE_MOTION, currentBlock.getBlockPosition(), MotionState.PositionStatus.ON_THE_GROUND);
-            }
-        } else {
-            railVehicleComponent.direction.y = 0;
-            motionState.setCurrentState(FREE_MOTION, railVehicleComponent.direction, FREE_MOTION, currentBlock.getBlockPosition(), MotionState.PositionStatus.ON_THE_AIR);
-        }
+    /**
+     * @return how many steps the rail simulation has taken
+     */
+    long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * @return nanoseconds the last step of the rail simulation took
+     */
+    long getLastStepTime() {
+        return lastStepTime;
+    }
 
-        setAngularAndLinearFactors(railVehicle, rigidBody, railVehicleComponent.pathDirection, motionState.angularFactor);
-        railVehicle.saveComponent(railVehicleComponent);
+    /**
+     * @return the positions of all active rail vehicles as of their last step
+     */
+    public RailVehicleIndex getVehicleIndex() {
+        return vehicleIndex;
     }
 
-    private void playSound(EntityRef railVehicle, Vector3f velocity, float drive) {
+    /**
+     * Enables stepping independent vehicles and trains on all cores once there are enough of them.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Enables replicating only compact motion descriptions and occasional snapshots, instead of every change of
+     * position and rotation. Clients then predict the motion along the rails themselves.
+     */
+    public void setClientPrediction(boolean clientPrediction) {
+        this.clientPrediction = clientPrediction;
+    }
+
+    public boolean isClientPrediction() {
+        return clientPrediction;
+    }
+
+    /**
+     * Enables stepping vehicles away from every player less often, with time steps as long as the time they skipped.
+     */
+    public void setLevelOfDetail(boolean levelOfDetail) {
+        this.levelOfDetail = levelOfDetail;
+    }
 
-        long currentTime = time.getGameTimeInMs();
-        if (!soundStack.containsKey(railVehicle)) {
-            soundStack.put(railVehicle, currentTime);
+    public boolean isLevelOfDetail() {
+        return levelOfDetail;
+    }
+
+    /**
+     * Collects the components of every awake vehicle, and of the wagons of its train, so the step can run without
+     * touching the entity system. Vehicles not due for a step at their level of detail are left out.
+     */
+    private void gather(float delta) {
+        units.clear();
+        deferred = 0;
+        gatherPlayerPositions();
+        List<MotionState> awake = motionStates.getAwake();
+        for (int i = awake.size() - 1; i >= 0; i--) {
+            MotionState motionState = awake.get(i);
+            RailVehicleComponent railVehicleComponent = motionState.railVehicle.getComponent(RailVehicleComponent.class);
+            if (railVehicleComponent == null || !railVehicleComponent.isCreated || isCoupled(railVehicleComponent) || !gatherVehicle(motionState)) {
+                // Coupled wagons are placed by their locomotive's train instead
+                motionState.stepDelta = 0;
+                motionStates.sleep(motionState);
+                continue;
+            }
+            motionState.stepDelta += delta;
+            int interval = getStepInterval(motionState);
+            if ((stepCount + motionState.railVehicle.getId()) % interval != 0) {
+                deferred++;
+                continue;
+            }
+            motionState.effects = interval == 1;
+            gatherTrain(motionState);
+            units.add(motionState);
         }
+    }
 
-        long soundProgress = currentTime - soundStack.get(railVehicle);
+    private void gatherPlayerPositions() {
+        playerCount = 0;
+        if (!levelOfDetail) {
+            return;
+        }
+        for (EntityRef client : entityManager.getEntitiesWith(ClientComponent.class)) {
+            LocationComponent location = client.getComponent(ClientComponent.class).character.getComponent(LocationComponent.class);
+            if (location == null) {
+                continue;
+            }
+            if (playerCount == playerPositions.size()) {
+                playerPositions.add(new Vector3f());
+            }
+            location.getWorldPosition(playerPositions.get(playerCount++));
+        }
+    }
 
-        if ((velocity.z > 0.1 || velocity.x > 0.1) && (soundProgress == 0f || soundProgress > 1000)) {
-            Vector3f tv = new Vector3f(velocity);
-            tv.y = 0;
-            float p = drive * 0.01f;
-            //float volume = ((tv.length() / p) * 0.01f)/10f;
-           // logger.info("timr: " + soundProgress);
-           // logger.info("volume: " + volume);
-            //audioManager.
-            railVehicle.send(new PlaySoundEvent(railVehicle, Assets.getSound("rails:vehicle").get(), 0.2f));
-            soundStack.put(railVehicle, currentTime);
+    /**
+     * @return every how many rail steps the vehicle is stepped, from its distance to the nearest player
+     */
+    private int getStepInterval(MotionState motionState) {
+        if (!levelOfDetail) {
+            return 1;
+        }
+        motionState.location.getWorldPosition(bodyPosition);
+        float nearest = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < playerCount; i++) {
+            Vector3f player = playerPositions.get(i);
+            float dx = player.x - bodyPosition.x;
+            float dz = player.z - bodyPosition.z;
+            nearest = Math.min(nearest, dx * dx + dz * dz);
+        }
+        if (nearest <= NEAR_DISTANCE * NEAR_DISTANCE) {
+            return 1;
         }
+        return nearest <= MID_DISTANCE * MID_DISTANCE ? MID_INTERVAL : FAR_INTERVAL;
     }
 
-    private void correctPositionAndRotation(EntityRef entity, BlockInfo blockInfo) {
-        RailVehicleComponent railVehicleComponent = entity.getComponent(RailVehicleComponent.class);
-        MeshComponent mesh = entity.getComponent(MeshComponent.class);
-        LocationComponent location = entity.getComponent(LocationComponent.class);
-        MotionState motionState = getCurrentState(entity);
-        Vector3f position = location.getWorldPosition();
-        RigidBodyComponent rb = entity.getComponent(RigidBodyComponent.class);
+    private boolean gatherVehicle(MotionState motionState) {
+        EntityRef railVehicle = motionState.railVehicle;
+        motionState.railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
+        motionState.location = railVehicle.getComponent(LocationComponent.class);
+        motionState.rigidBody = railVehicle.getComponent(RigidBodyComponent.class);
+        motionState.railMotion = railVehicle.getComponent(RailMotionComponent.class);
+        getHeightAboveRail(railVehicle, motionState);
+        return motionState.railVehicleComponent != null && motionState.location != null && motionState.rigidBody != null;
+    }
 
-        if (motionState == null) {
+    private void gatherTrain(MotionState locomotiveState) {
+        locomotiveState.train.clear();
+        locomotiveState.destination = null;
+        if (locomotiveState.railVehicleComponent.type != RailVehicleComponent.Types.locomotive) {
             return;
         }
+        LocomotiveComponent locomotive = locomotiveState.railVehicle.getComponent(LocomotiveComponent.class);
+        if (locomotive != null && locomotive.destination != null) {
+            locomotiveState.destination = railGraph.getNode(locomotive.destination);
+            if (locomotiveState.destination != null) {
+                // Routes are searched here on the main thread, the vehicles stepped in parallel only look them up
+                railRouter.prepare(locomotiveState.destination);
+            }
+        }
+        EntityRef previous = locomotiveState.railVehicle;
+        EntityRef wagon = locomotiveState.railVehicleComponent.childNode;
+        while (wagon != null && wagon.exists() && locomotiveState.train.size() < MAX_TRAIN_LENGTH) {
+            MotionState wagonState = getCurrentState(wagon);
+            if (!gatherVehicle(wagonState) || !previous.equals(wagonState.railVehicleComponent.parentNode)) {
+                break;
+            }
+            locomotiveState.train.add(wagonState);
+            previous = wagon;
+            wagon = wagonState.railVehicleComponent.childNode;
+        }
+    }
 
-        if (railVehicleComponent.isCreated && motionState.currentPositionStatus == MotionState.PositionStatus.ON_THE_PATH) {
-            if (blockInfo.isIntersection()) {
-                blockInfo.getBlock().setDirection(railVehicleComponent.pathDirection.x != 0 ? Side.LEFT : Side.FRONT);
+    /**
+     * Applies the results of a step to the entity system: velocities, effects and changed components.
+     */
+    private void commit(MotionState motionState) {
+        EntityRef railVehicle = motionState.railVehicle;
+        RailVehicleComponent railVehicleComponent = motionState.railVehicleComponent;
+        motionState.stepDelta = 0;
+        if (motionState.currentPositionStatus == MotionState.PositionStatus.ON_THE_PATH) {
+            eventVelocity.set(motionState.velocity);
+            railVehicle.send(changeVelocityEvent);
+            eventsSent++;
+        }
+        if (motionState.showSmoke) {
+            motionState.showSmoke = false;
+            if (motionState.effects) {
+                showSmoke(railVehicleComponent);
             }
+        }
+        setAngularAndLinearFactors(railVehicle, motionState.rigidBody, railVehicleComponent.pathDirection, motionState.angularFactor);
+        if (motionState.currentPositionStatus == MotionState.PositionStatus.ON_THE_PATH && railVehicleComponent.drive == 0
+                && railVehicleComponent.needRevertVelocity == 0 && motionState.velocity.lengthSquared() < REST_SPEED_SQUARED) {
+            motionState.restTicks++;
+        } else {
+            motionState.restTicks = 0;
+        }
+        saveMotion(motionState, railVehicleComponent.drive);
+        motionState.location.getWorldPosition(bodyPosition);
+        vehicleIndex.update(railVehicle, bodyPosition);
+
+        for (MotionState wagonState : motionState.train) {
+            // Physics must not move the wagon while the train holds it in place
+            setAngularAndLinearFactors(wagonState.railVehicle, wagonState.rigidBody, LOCKED_MOTION, LOCKED_MOTION);
+            // Wagons are pulled at the speed the locomotive drives at
+            saveMotion(wagonState, railVehicleComponent.drive);
+            wagonState.location.getWorldPosition(bodyPosition);
+            vehicleIndex.update(wagonState.railVehicle, bodyPosition);
+        }
 
-            position = setPositionOnTheRail(railVehicleComponent.pathDirection, blockInfo, position, mesh.mesh.getAABB().getMax(), motionState);
+        if (motionState.restTicks >= SLEEP_TICKS) {
+            motionStates.sleep(motionState);
+        }
+    }
 
-            Vector3f distance = new Vector3f(position);
-            distance.sub(motionState.prevPosition);
-            moveDescriptor.setYawOnPath(railVehicleComponent, motionState, blockInfo, distance);
-            moveDescriptor.setPitchOnPath(railVehicleComponent, position, motionState, blockInfo);
+    private void saveMotion(MotionState motionState, float drive) {
+        if (!clientPrediction) {
+            saveChangedComponents(motionState);
+            return;
+        }
+        saveRailMotion(motionState, drive);
+        // Spread the snapshots of different vehicles over the interval
+        if ((stepCount + motionState.railVehicle.getId()) % SNAPSHOT_TICKS == 0) {
+            saveChangedComponents(motionState);
+        } else if (motionState.segment != null) {
+            // Without a save physics does not learn about the corrected location, so its body is moved directly
+            RigidBody body = physics.getRigidBody(motionState.railVehicle);
+            if (body != null) {
+                motionState.location.getWorldPosition(bodyPosition);
+                motionState.location.getWorldRotation(bodyRotation);
+                body.setTransform(bodyPosition, bodyRotation);
+            }
+        }
+    }
 
-            Quat4f yawPitch = new Quat4f(TeraMath.DEG_TO_RAD * railVehicleComponent.yaw, TeraMath.DEG_TO_RAD * railVehicleComponent.pitch, 0);
+    private void saveRailMotion(MotionState motionState, float drive) {
+        RailMotionComponent railMotion = motionState.railMotion;
+        boolean added = railMotion == null;
+        if (added) {
+            railMotion = new RailMotionComponent();
+        }
+        TrackSegment segment = motionState.segment;
+        boolean onRails = segment != null;
+        float speed = motionState.velocity.length();
+        if (!added && railMotion.onRails == onRails && railMotion.drive == drive && Math.abs(railMotion.speed - speed) <= SPEED_TOLERANCE
+                && (!onRails || (railMotion.entry == segment.getFrom() && railMotion.exit == segment.getTo()
+                && railMotion.block.equals(motionState.segmentNode.getPosition())))) {
+            return;
+        }
 
-            motionState.prevPosition.set(position);
+        railMotion.revision++;
+        railMotion.onRails = onRails;
+        railMotion.speed = speed;
+        railMotion.drive = drive;
+        railMotion.heightAboveRail = Math.max(0, motionState.heightAboveRail);
+        if (onRails) {
+            railMotion.block.set(motionState.segmentNode.getPosition());
+            railMotion.entry = segment.getFrom();
+            railMotion.exit = segment.getTo();
+            railMotion.offset = motionState.segmentOffset;
+        }
+        if (added) {
+            motionState.railVehicle.addComponent(railMotion);
+            motionState.railMotion = railMotion;
+        } else {
+            motionState.railVehicle.saveComponent(railMotion);
+        }
+        componentSaves++;
+    }
 
-            location.setWorldPosition(position);
-            location.setWorldRotation(yawPitch);
+    private void saveChangedComponents(MotionState motionState) {
+        if (motionState.updateVehicleSnapshot(motionState.railVehicleComponent)) {
+            motionState.railVehicle.saveComponent(motionState.railVehicleComponent);
+            componentSaves++;
+        }
+        if (motionState.updateLocationSnapshot(motionState.location)) {
+            motionState.railVehicle.saveComponent(motionState.location);
+            componentSaves++;
+        }
+    }
 
-            entity.saveComponent(railVehicleComponent);
-            entity.saveComponent(location);
+    /**
+     * Wakes the vehicle, or the locomotive of its train if it is a coupled wagon.
+     */
+    private void wake(EntityRef railVehicle) {
+        RailVehicleComponent railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
+        if (railVehicleComponent != null && isCoupled(railVehicleComponent)) {
+            motionStates.wake(railVehicleComponent.locomotiveRef);
+        } else {
+            motionStates.wake(railVehicle);
         }
-        rotateVehicles(rb.velocity, railVehicleComponent);
-     }
+    }
+
+    private boolean isCoupled(RailVehicleComponent railVehicleComponent) {
+        return railVehicleComponent.parentNode != null && railVehicleComponent.locomotiveRef != null && railVehicleComponent.locomotiveRef.exists();
+    }
+
+    private MotionState getCurrentState(EntityRef railVehicle) {
+        return motionStates.getOrCreate(railVehicle);
+    }
+
+    private float getHeightAboveRail(EntityRef railVehicle, MotionState motionState) {
+        if (motionState.heightAboveRail < 0) {
+            MeshComponent mesh = railVehicle.getComponent(MeshComponent.class);
+            if (mesh == null || mesh.mesh == null) {
+                return 0;
+            }
+            motionState.heightAboveRail = mesh.mesh.getAABB().getMax().y / 2 + 0.05f;
+        }
+        return motionState.heightAboveRail;
+    }
 
     @ReceiveEvent(components = {ClientComponent.class}, priority = EventPriority.PRIORITY_HIGH)
     public void updateVerticalMovement(VerticalMovementAxis event, EntityRef entity) {
@@ -268,23 +570,13 @@ public class MinecartSystem extends BaseComponentSystem implements UpdateSubscri
             EntityRef railVehicle = location.getParent();
             RailVehicleComponent railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
 
-            MotionState motionState = moveStates.get(railVehicle);
+            MotionState motionState = motionStates.get(railVehicle);
 
             if (motionState == null || motionState.currentBlockPosition.lengthSquared() == 0) {
                 return;
             }
-            Block block = worldProvider.getBlock(motionState.currentBlockPosition);
-            if (block == null) {
-                return;
-            }
-            EntityRef blockEntity = block.getEntity();
-            if (blockEntity == null || !blockEntity.hasComponent(ConnectsToRailsComponent.class)) {
-                return;
-            }
-
-            ConnectsToRailsComponent connectsToRailsComponent = blockEntity.getComponent(ConnectsToRailsComponent.class);
-
-            if (!connectsToRailsComponent.type.equals(ConnectsToRailsComponent.RAILS.PLANE)) {
+            RailNode node = railGraph.getNode(motionState.currentBlockPosition);
+            if (node == null || node.getType() != ConnectsToRailsComponent.RAILS.PLANE) {
                 return;
             }
 
@@ -310,33 +602,15 @@ public class MinecartSystem extends BaseComponentSystem implements UpdateSubscri
                 velocity.z *= railVehicleComponent.direction.z;
                 if (velocity.length() > 0) {
                     railVehicle.send(new ChangeVelocityEvent(velocity));
+                    eventsSent++;
                 }
             }
             railVehicle.saveComponent(railVehicleComponent);
+            componentSaves++;
             event.consume();
         }
     }
 
-    private boolean isLowSpeed(float drive, float velocitySpeed) {
-        float driveSpeed = drive / 100;
-        return (velocitySpeed / driveSpeed) < 90;
-    }
-
-    private BlockInfo getBlockInDirection(Vector3f from, Vector3f to, float length) {
-        HitResult hit = physics.rayTrace(from, to, length, StandardCollisionGroup.DEFAULT, StandardCollisionGroup.WORLD);
-        Vector3i blockPosition = hit.getBlockPosition();
-        Block block = null;
-        EntityRef blockEntity = null;
-        ConnectsToRailsComponent railsComponent = null;
-
-        if (blockPosition != null) {
-            block = worldProvider.getBlock(blockPosition);
-            blockEntity = block.getEntity();
-            railsComponent = blockEntity.getComponent(ConnectsToRailsComponent.class);
-        }
-        return new BlockInfo(block, blockPosition, blockEntity, railsComponent, hit.getHitPoint());
-    }
-
     private void setAngularAndLinearFactors(EntityRef entity, RigidBodyComponent rigidBodyComponent, Vector3f linearFactor, Vector3f angularFactor) {
         boolean needSave = false;
         if (!linearFactor.equals(rigidBodyComponent.linearFactor)) {
@@ -350,6 +624,7 @@ public class MinecartSystem extends BaseComponentSystem implements UpdateSubscri
 
         if (needSave) {
             entity.saveComponent(rigidBodyComponent);
+            componentSaves++;
         }
     }
 
@@ -366,66 +641,56 @@ public class MinecartSystem extends BaseComponentSystem implements UpdateSubscri
                 particleEffectComponent.targetVelocity.scale(4f);
                 particleEffectComponent.acceleration.scale(2.5f);
                 railVehicleComponent.pipe.saveComponent(particleEffectComponent);
+                componentSaves++;
             } else {
                 particleEffectComponent.targetVelocity.set(0, 0, 0);
             }
         }
     }
 
-    private void rotateVehicles(Vector3f velocity, RailVehicleComponent railVehicleComponent) {
-        velocity.y = 0;
-        if (velocity.length() == 0) {
-            return;
+    private void recordMetrics(long stepTime) {
+        metrics.add(RailMetric.STEP_TIME, stepTime);
+        metrics.add(RailMetric.AWAKE_VEHICLES, motionStates.awakeSize());
+        metrics.add(RailMetric.SLEEPING_VEHICLES, motionStates.size() - motionStates.awakeSize());
+        metrics.add(RailMetric.DEFERRED_VEHICLES, deferred);
+        metrics.add(RailMetric.COMPONENT_SAVES, componentSaves);
+        metrics.add(RailMetric.EVENTS_SENT, eventsSent);
+        componentSaves = 0;
+        eventsSent = 0;
+        for (RailVehicleStepper stepper : allSteppers) {
+            metrics.add(RailMetric.BLOCK_PROBES, stepper.blockProbes);
+            metrics.add(RailMetric.BLOCK_LOOKUP_TIME, stepper.blockLookupTime);
+            metrics.add(RailMetric.CALCULATE_DIRECTION_TIME, stepper.calculateDirectionTime);
+            metrics.add(RailMetric.CORRECT_POSITION_TIME, stepper.correctPositionTime);
+            stepper.resetMetrics();
         }
-        for (EntityRef vehicle : railVehicleComponent.vehicles) {
-            LocationComponent locationComponent = vehicle.getComponent(LocationComponent.class);
-            if (locationComponent == null) {
-                continue;
-            }
-            Quat4f rotate = new Quat4f(0, 0, 0, 1);
-
-            float yawSide = Math.round(railVehicleComponent.yaw / 90f);
-            float reverseSign = 1;
-            if (yawSide > 1) {
-                reverseSign = -1;
-            }
+        metrics.endTick();
+    }
 
-            float angleSign = velocity.x >= 0 && velocity.z >= 0 ? 1 : -1;
-            float angle = reverseSign * angleSign * (velocity.length() / MinecartHelper.TWO_PI) + locationComponent.getLocalRotation().getAngle();
-            if (angle > MinecartHelper.TWO_PI) {
-                angle = 0;
-            } else if (angle < 0) {
-                angle = MinecartHelper.TWO_PI;
-            }
+    /**
+     * Steps a range of the units, splitting it between threads while it is large.
+     */
+    private final class StepTask extends RecursiveAction {
+        private final int from;
+        private final int to;
 
-            rotate.set(new Vector3f(1, 0, 0), angle);
-            locationComponent.setLocalRotation(rotate);
-            vehicle.saveComponent(locationComponent);
+        private StepTask(int from, int to) {
+            this.from = from;
+            this.to = to;
         }
-    }
 
-    private Vector3f setPositionOnTheRail(Vector3f direction, BlockInfo block, Vector3f position, Vector3f railVehicleMaxExtends, MotionState motionState) {
-        Vector3f fixedPosition = new Vector3f(position);
-        if (direction.x == 0 || direction.z == 0) {
-            if (direction.z != 0) {
-                fixedPosition.x = block.getBlockPosition().x;
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_BATCH) {
+                RailVehicleStepper stepper = steppers.get();
+                for (int i = from; i < to; i++) {
+                    MotionState unit = units.get(i);
+                    stepper.step(unit, unit.stepDelta);
+                }
             } else {
-                fixedPosition.z = block.getBlockPosition().z;
+                int middle = (from + to) >>> 1;
+                invokeAll(new StepTask(from, middle), new StepTask(middle, to));
             }
         }
-
-        fixedPosition.y = block.hitPoint().y + railVehicleMaxExtends.y / 2 + 0.05f;
-
-       // }
-        /*if (!block.isSlope() && !motionState.nextBlockIsSlope) {
-            float halfHeight = minecartMaxExtends.y/2;
-            float maxBlockHeight = block.getBlockPosition().y + block.getBlock().getCollisionOffset().y;
-
-           // if ((maxBlockHeight + halfHeight)>position.y) {
-                fixedPosition.y = maxBlockHeight + halfHeight   ;
-         //   }
-        }*/
-
-        return fixedPosition;
     }
 }
@@ -15,11 +15,23 @@
  */
 package org.terasology.rails.carts.controllers;
 
+import com.google.common.collect.Lists;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.logic.location.LocationComponent;
+import org.terasology.math.Side;
+import org.terasology.math.geom.Quat4f;
 import org.terasology.math.geom.Vector3i;
 import org.terasology.math.geom.Vector3f;
+import org.terasology.physics.components.RigidBodyComponent;
+import org.terasology.rails.blocks.RailNode;
+import org.terasology.rails.blocks.TrackSegment;
+import org.terasology.rails.carts.components.RailMotionComponent;
 import org.terasology.rails.carts.components.RailVehicleComponent;
 
+import java.util.List;
+
 public class MotionState {
+    public EntityRef railVehicle;
     public Vector3f prevPosition = new Vector3f();
     public Vector3f currentBlockPosition = new Vector3f();
     public Vector3f prevBlockPosition = new Vector3f();
@@ -27,26 +39,97 @@ public class MotionState {
     public RailVehicleComponent railVehicleComponent;
     public int yawSign = 1;
     public int pitchSign = 1;
+    public float heightAboveRail = -1;
     public boolean nextBlockIsSlope;
     public PositionStatus currentPositionStatus = PositionStatus.ON_THE_AIR;
+    public int restTicks;
+    // Only used by locomotives, to place the wagons coupled behind them
+    public TrainTrail trail;
+    public int trailWagons;
+    // Rail a locomotive is routed to, and the way out of the junction it is on when routing picked one
+    public RailNode destination;
+    public Side routedExit;
+
+    // Gathered on the main thread before each step, so that the step itself never touches the entity system
+    public LocationComponent location;
+    public RigidBodyComponent rigidBody;
+    public RailMotionComponent railMotion;
+    public final List<MotionState> train = Lists.newArrayList();
+    // Time to step over, which covers the steps skipped at lower levels of detail; and whether effects are shown
+    public float stepDelta;
+    public boolean effects = true;
+    // Results of a step, applied on the main thread afterwards
+    public final Vector3f velocity = new Vector3f();
+    public boolean showSmoke;
+    // Segment the vehicle was placed on, or null if it is not on rails
+    public RailNode segmentNode;
+    public TrackSegment segment;
+    public float segmentOffset;
+    int awakeIndex = -1;
     public static enum PositionStatus { ON_THE_AIR, ON_THE_GROUND, ON_THE_PATH, ON_THE_LIQUID };
 
+    // Values as of the last saveComponent, so unchanged components are not saved and replicated again
+    private boolean vehicleSaved;
+    private float savedYaw;
+    private float savedPrevYaw;
+    private float savedPitch;
+    private float savedDrive;
+    private float savedNeedRevertVelocity;
+    private final Vector3f savedPathDirection = new Vector3f();
+    private final Vector3f savedDirection = new Vector3f();
+    private boolean locationSaved;
+    private final Vector3f savedPosition = new Vector3f();
+    private final Quat4f savedRotation = new Quat4f();
+
     public void setCurrentState(Vector3f pathDirection, Vector3f minecartDirection,  Vector3f newAngularFactor,
                                 Vector3i newBlockPosition, PositionStatus newPositionStatus) {
-        angularFactor = newAngularFactor;
+        angularFactor.set(newAngularFactor);
         this.railVehicleComponent.pathDirection.set(pathDirection);
         this.railVehicleComponent.direction.set(minecartDirection);
         currentPositionStatus = newPositionStatus;
         if (newBlockPosition != null) {
-            setCurrentBlockPosition(newBlockPosition.toVector3f());
+            setCurrentBlockPosition(newBlockPosition);
+        }
+    }
+
+    public void setCurrentBlockPosition(Vector3i newBlockPosition) {
+        if (currentBlockPosition.x != newBlockPosition.x || currentBlockPosition.y != newBlockPosition.y
+                || currentBlockPosition.z != newBlockPosition.z) {
+            prevBlockPosition.set(currentBlockPosition);
+            currentBlockPosition.set(newBlockPosition.x, newBlockPosition.y, newBlockPosition.z);
+        }
+    }
+
+    /**
+     * @return true if a field written by the simulation changed since the last call, in which case the component needs saving
+     */
+    public boolean updateVehicleSnapshot(RailVehicleComponent railVehicle) {
+        if (vehicleSaved && savedYaw == railVehicle.yaw && savedPrevYaw == railVehicle.prevYaw && savedPitch == railVehicle.pitch
+                && savedDrive == railVehicle.drive && savedNeedRevertVelocity == railVehicle.needRevertVelocity
+                && savedPathDirection.equals(railVehicle.pathDirection) && savedDirection.equals(railVehicle.direction)) {
+            return false;
         }
+        vehicleSaved = true;
+        savedYaw = railVehicle.yaw;
+        savedPrevYaw = railVehicle.prevYaw;
+        savedPitch = railVehicle.pitch;
+        savedDrive = railVehicle.drive;
+        savedNeedRevertVelocity = railVehicle.needRevertVelocity;
+        savedPathDirection.set(railVehicle.pathDirection);
+        savedDirection.set(railVehicle.direction);
+        return true;
     }
 
-    public void setCurrentBlockPosition(Vector3f currentBlockPosition) {
-        if (this.currentBlockPosition.x != currentBlockPosition.x || this.currentBlockPosition.y != currentBlockPosition.y
-                || this.currentBlockPosition.z != currentBlockPosition.z) {
-            this.prevBlockPosition = this.currentBlockPosition;
-            this.currentBlockPosition = currentBlockPosition;
+    /**
+     * @return true if the position or rotation changed since the last call, in which case the component needs saving
+     */
+    public boolean updateLocationSnapshot(LocationComponent location) {
+        if (locationSaved && savedPosition.equals(location.getLocalPosition()) && savedRotation.equals(location.getLocalRotation())) {
+            return false;
         }
+        locationSaved = true;
+        savedPosition.set(location.getLocalPosition());
+        savedRotation.set(location.getLocalRotation());
+        return true;
     }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.carts.controllers;
+
+import com.google.common.collect.Lists;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.rails.carts.components.RailVehicleComponent;
+
+import java.util.List;
+
+/**
+ * Motion states of the active rail vehicles, keyed by entity id.
+ * Entries are removed by {@link MinecartSystem} when the vehicle is deactivated, so the store never outlives its entities.
+ * Only awake states are simulated; a state sleeps once its vehicle has been at rest for a while.
+ */
+public class MotionStateStore {
+    private TLongObjectMap<MotionState> states = new TLongObjectHashMap<>();
+    private List<MotionState> awake = Lists.newArrayList();
+
+    public MotionState get(EntityRef railVehicle) {
+        return states.get(railVehicle.getId());
+    }
+
+    public MotionState getOrCreate(EntityRef railVehicle) {
+        MotionState motionState = states.get(railVehicle.getId());
+        if (motionState == null) {
+            motionState = new MotionState();
+            motionState.railVehicle = railVehicle;
+            motionState.railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
+            states.put(railVehicle.getId(), motionState);
+        }
+        return motionState;
+    }
+
+    public void remove(EntityRef railVehicle) {
+        MotionState motionState = states.remove(railVehicle.getId());
+        if (motionState != null) {
+            sleep(motionState);
+        }
+    }
+
+    /**
+     * @return true if the vehicle was sleeping
+     */
+    public boolean wake(EntityRef railVehicle) {
+        MotionState motionState = getOrCreate(railVehicle);
+        motionState.restTicks = 0;
+        if (motionState.awakeIndex >= 0) {
+            return false;
+        }
+        motionState.awakeIndex = awake.size();
+        awake.add(motionState);
+        return true;
+    }
+
+    public void sleep(MotionState motionState) {
+        int index = motionState.awakeIndex;
+        if (index < 0) {
+            return;
+        }
+        MotionState last = awake.remove(awake.size() - 1);
+        if (last != motionState) {
+            awake.set(index, last);
+            last.awakeIndex = index;
+        }
+        motionState.awakeIndex = -1;
+    }
+
+    public boolean isAwake(MotionState motionState) {
+        return motionState.awakeIndex >= 0;
+    }
+
+    /**
+     * Awake states in no particular order. Only the state being processed may be put to sleep while iterating backwards.
+     */
+    public List<MotionState> getAwake() {
+        return awake;
+    }
+
+    public int size() {
+        return states.size();
+    }
+
+    public int awakeSize() {
+        return awake.size();
+    }
+
+    public void clear() {
+        states.clear();
+        awake.clear();
+    }
+}
@@ -15,34 +15,36 @@
  */
 package org.terasology.rails.carts.controllers;
 
-import org.terasology.logic.location.LocationComponent;
 import org.terasology.math.Side;
-import org.terasology.math.geom.BaseVector3f;
 import org.terasology.math.geom.Vector3f;
-import org.terasology.physics.components.RigidBodyComponent;
+import org.terasology.math.geom.Vector3i;
 import org.terasology.rails.carts.components.RailVehicleComponent;
 import org.terasology.rails.carts.utils.MinecartHelper;
 
 public class MoveDescriptor {
+    // The per-tick factors below were tuned for this step and are scaled to the actual one
+    static final float REFERENCE_STEP = 1f / 60f;
+    static final float DRIVE_BLEND = 0.5f;
+
     public void calculateDirection(Vector3f velocity, BlockInfo blockInfo, RailVehicleComponent railVehicleComponent,
-                                   MotionState motionState, Vector3f position, int slopeFactor) {
+                                   MotionState motionState, Vector3f position, int slopeFactor, float delta) {
         Side side = correctSide(blockInfo);
 
         switch (blockInfo.getType()) {
             case SLOPE:
-                railVehicleComponent.pathDirection = getDirectPath(side);
-                break;
             case PLANE:
-                railVehicleComponent.pathDirection = getDirectPath(side);
+                setDirectPath(side, railVehicleComponent.pathDirection);
                 break;
             case INTERSECTION:
-                Vector3f currentBlock = new Vector3f(motionState.currentBlockPosition);
-                currentBlock.sub(motionState.prevBlockPosition);
-                currentBlock.absolute();
-                currentBlock.y = 0;
                 break;
             case TEE_INVERSED:
             case TEE:
+                if (motionState.routedExit != null) {
+                    setRoutedDirection(motionState.routedExit, railVehicleComponent, motionState, position);
+                } else {
+                    setCornerDirection(side, railVehicleComponent, motionState, position);
+                }
+                break;
             case CURVE:
                 setCornerDirection(side, railVehicleComponent, motionState, position);
                 break;
@@ -55,7 +57,7 @@ public class MoveDescriptor {
             railVehicleComponent.direction.y = 0;
         }
 
-        correctVelocity(railVehicleComponent, velocity, blockInfo, position);
+        correctVelocity(railVehicleComponent, velocity, blockInfo, delta);
     }
 
     public Side correctSide(BlockInfo blockInfo) {
@@ -65,57 +67,16 @@ public class MoveDescriptor {
                 side = side.yawClockwise(1);
                 break;
             case TEE:
-                side = side.yawClockwise(-1);
+                // A switched junction runs like the inverted tee block that toggling a junction used to place
+                side = blockInfo.isSwitched() ? side.yawClockwise(2) : side.yawClockwise(-1);
                 break;
         }
         return side;
     }
 
-    public void setYawOnPath(RailVehicleComponent railVehicle, MotionState motionState, BlockInfo blockInfo, Vector3f distanceMoved) {
-        Side side = correctSide(blockInfo);
-
-        if (blockInfo.isCorner() && distanceMoved != null) {
-            if (railVehicle.prevYaw == -1) {
-                railVehicle.prevYaw = railVehicle.yaw;
-            }
-            distanceMoved.y = 0;
-            float percent = distanceMoved.length() / 0.01f;
-            railVehicle.yaw += motionState.yawSign * 90f * percent / 100;
-            if ((motionState.yawSign > 0 && railVehicle.yaw > railVehicle.prevYaw + 90f) || (motionState.yawSign < 0 && railVehicle.yaw < railVehicle.prevYaw - 90f)) {
-                railVehicle.yaw = railVehicle.prevYaw + motionState.yawSign * 90f;
-            }
-
-            if (railVehicle.yaw < 0) {
-                railVehicle.yaw = 360 + railVehicle.yaw;
-            } else if (railVehicle.yaw > 360) {
-                railVehicle.yaw = railVehicle.yaw - 360;
-            }
-            return;
-        }
-
-        switch (side) {
-            case FRONT:
-            case BACK:
-                railVehicle.yaw = 180 * Math.round(railVehicle.yaw / 180);
-                break;
-            case LEFT:
-            case RIGHT:
-                railVehicle.yaw = 90 * Math.round(railVehicle.yaw / 90);
-                if (railVehicle.yaw == 0) {
-                    railVehicle.yaw = 90;
-                }
-                break;
-        }
-
-        if (railVehicle.yaw >= 360) {
-            railVehicle.yaw = 360 - railVehicle.yaw;
-        }
-    }
-
-    private Vector3f getDirectPath(Side side) {
-        Vector3f directPath = side.getVector3i().toVector3f();
-        directPath.absolute();
-        return directPath;
+    private void setDirectPath(Side side, Vector3f directPath) {
+        Vector3i sideVector = side.getVector3i();
+        directPath.set(Math.abs(sideVector.x), Math.abs(sideVector.y), Math.abs(sideVector.z));
     }
 
     private void setCornerDirection(Side side, RailVehicleComponent railVehicle, MotionState motionState, Vector3f position) {
@@ -161,19 +122,7 @@ public class MoveDescriptor {
         }
 
         if (checkBouds) {
-            if (railVehicle.direction.x != 0) {
-                if (railVehicle.direction.x > 0 && motionState.currentBlockPosition.x  < position.x) {
-                    rotate = true;
-                } else if (railVehicle.direction.x < 0 && motionState.currentBlockPosition.x  > position.x) {
-                    rotate = true;
-                }
-            } else if (railVehicle.direction.z != 0) {
-                if (railVehicle.direction.z > 0 && motionState.currentBlockPosition.z  < position.z) {
-                    rotate = true;
-                } else if (railVehicle.direction.z < 0 && motionState.currentBlockPosition.z  > position.z) {
-                    rotate = true;
-                }
-            }
+            rotate = isPastCentre(railVehicle, motionState, position);
         }
 
         if (rotate) {
@@ -184,16 +133,57 @@ public class MoveDescriptor {
         railVehicle.pathDirection.absolute();
     }
 
+    /**
+     * Runs a junction the way routing picked: straight on, or turning towards the exit once past the centre.
+     */
+    private void setRoutedDirection(Side exit, RailVehicleComponent railVehicle, MotionState motionState, Vector3f position) {
+        Vector3f direction = railVehicle.direction;
+        Vector3i exitVector = exit.getVector3i();
+        if (exitVector.x * direction.x + exitVector.z * direction.z > 0) {
+            motionState.yawSign = 0;
+        } else {
+            // rotatePathDirection turns (x, z) into (yawSign * z, -yawSign * x)
+            if (direction.z != 0) {
+                motionState.yawSign = exitVector.x * (int) Math.signum(direction.z);
+            } else {
+                motionState.yawSign = -exitVector.z * (int) Math.signum(direction.x);
+            }
+            if (isPastCentre(railVehicle, motionState, position)) {
+                rotatePathDirection(direction, motionState.yawSign);
+            }
+        }
+
+        railVehicle.pathDirection.set(direction);
+        railVehicle.pathDirection.absolute();
+    }
+
+    private boolean isPastCentre(RailVehicleComponent railVehicle, MotionState motionState, Vector3f position) {
+        if (railVehicle.direction.x != 0) {
+            if (railVehicle.direction.x > 0 && motionState.currentBlockPosition.x  < position.x) {
+                return true;
+            } else if (railVehicle.direction.x < 0 && motionState.currentBlockPosition.x  > position.x) {
+                return true;
+            }
+        } else if (railVehicle.direction.z != 0) {
+            if (railVehicle.direction.z > 0 && motionState.currentBlockPosition.z  < position.z) {
+                return true;
+            } else if (railVehicle.direction.z < 0 && motionState.currentBlockPosition.z  > position.z) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void rotatePathDirection(Vector3f dir, int angle) {
         if (angle != 0) {
-            Vector3f newDir = new Vector3f();
-            newDir.x = angle * dir.z;
-            newDir.z = -1 * angle * dir.x;
-            dir.set(newDir);
+            float x = angle * dir.z;
+            dir.z = -1 * angle * dir.x;
+            dir.x = x;
+            dir.y = 0;
         }
     }
 
-    private void correctVelocity(RailVehicleComponent railVehicleComponent, Vector3f velocity, BlockInfo blockInfo, Vector3f position) {
+    private void correctVelocity(RailVehicleComponent railVehicleComponent, Vector3f velocity, BlockInfo blockInfo, float delta) {
 
         if (blockInfo.isCorner()) {
             if (velocity.x != 0) {
@@ -209,49 +199,19 @@ public class MoveDescriptor {
             railVehicleComponent.direction.x = railVehicleComponent.direction.z;
         }
 
-        if (railVehicleComponent.parentNode != null) {
-            LocationComponent parentLocation = railVehicleComponent.parentNode.getComponent(LocationComponent.class);
-            Vector3f parentPos = parentLocation.getWorldPosition();
-            Vector3f dir = new Vector3f(parentPos);
-            dir.sub(position);
-            dir.y = 0;
-            float dirLength = dir.length();
-            if (dir.length() > 1.46f) {
-                RigidBodyComponent rb = railVehicleComponent.parentNode.getComponent(RigidBodyComponent.class);
-                railVehicleComponent.direction.set(Math.signum(dir.x), railVehicleComponent.direction.y, Math.signum(dir.z));
-                velocity.set(1, velocity.y, 1);
-                velocity.scale(rb.velocity.length() * (dir.length() - 0.8f) + velocity.length());
-            } else if (dir.length() < 1.2f) {
-                railVehicleComponent.direction.set(Math.signum(dir.x), railVehicleComponent.direction.y, Math.signum(dir.z));
-                railVehicleComponent.direction.negate();
-                velocity.set(1, velocity.y, 1);
-                velocity.scale(velocity.length() * (dir.length() - 0.8f));
-            }
-        }
-
         MinecartHelper.setVectorToDirection(railVehicleComponent.direction, railVehicleComponent.pathDirection);
 
         velocity.absolute();
-        float restoreLength = 0;
-        if (railVehicleComponent.parentNode != null) {
-            velocity.y = 0;
-            restoreLength = Math.abs(velocity.x) > Math.abs(velocity.z) ? Math.abs(velocity.x) : Math.abs(velocity.z);
-        }
-
-        if (restoreLength == 0) {
-            MinecartHelper.setVectorToDirection(velocity, railVehicleComponent.direction);
-        } else {
-            velocity.set(railVehicleComponent.direction);
-            velocity.scale(restoreLength);
-        }
+        MinecartHelper.setVectorToDirection(velocity, railVehicleComponent.direction);
 
         if (railVehicleComponent.drive > 0) {
             float speed = velocity.length();
             if (Math.abs((speed - railVehicleComponent.drive)) > 0.1f) {
-                Vector3f drive = new Vector3f(railVehicleComponent.drive, railVehicleComponent.drive, railVehicleComponent.drive);
-                drive.x *= railVehicleComponent.direction.x;
-                drive.z *= railVehicleComponent.direction.z;
-                velocity.set(BaseVector3f.lerp(velocity, drive, 0.5f));
+                float drive = railVehicleComponent.drive;
+                float blend = 1 - (float) Math.pow(1 - DRIVE_BLEND, delta / REFERENCE_STEP);
+                velocity.x += (drive * railVehicleComponent.direction.x - velocity.x) * blend;
+                velocity.y += (drive - velocity.y) * blend;
+                velocity.z += (drive * railVehicleComponent.direction.z - velocity.z) * blend;
             }
         }
 
@@ -266,50 +226,4 @@ public class MoveDescriptor {
         }
 
     }
-
-    public void setPitchOnPath(RailVehicleComponent railVehicle, Vector3f position, MotionState motionState, BlockInfo blockInfo) {
-        railVehicle.pitch = 0;
-
-        if (blockInfo.isSlope() || motionState.nextBlockIsSlope) {
-
-            float reverseSign = 1;
-            if (railVehicle.direction.x < 0 || railVehicle.direction.z < 0) {
-                reverseSign = -1;
-            }
-
-            float yawSide = Math.round(railVehicle.yaw / 90f);
-            if (yawSide > 1) {
-                reverseSign = -reverseSign;
-            }
-
-            if (railVehicle.direction.y > 0) {
-                railVehicle.pitch = -45f;
-            } else {
-                railVehicle.pitch = 45f;
-            }
-
-            if (motionState.nextBlockIsSlope) {
-                float targetY = motionState.currentBlockPosition.y + 0.5f;
-                float sourceY = position.y - 0.5f;
-
-                targetY = targetY - sourceY;
-
-                if (targetY > 1) {
-                    targetY = 1;
-                }
-                float percent = 3.5f * (1 - targetY);
-
-                if (percent > 1) {
-                    percent = 1;
-                }
-
-                railVehicle.pitch = railVehicle.pitch * percent;
-
-                if (railVehicle.pitch > 45 || railVehicle.pitch < -45) {
-                    railVehicle.pitch = 45 * Math.signum(railVehicle.pitch);
-                }
-            }
-            railVehicle.pitch *= reverseSign;
-        }
-    }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.carts.controllers;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnChangedComponent;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.logic.location.LocationComponent;
+import org.terasology.math.Side;
+import org.terasology.math.TeraMath;
+import org.terasology.math.geom.Quat4f;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.rails.blocks.RailGraph;
+import org.terasology.rails.blocks.RailNode;
+import org.terasology.rails.blocks.TrackSegment;
+import org.terasology.rails.carts.components.RailMotionComponent;
+import org.terasology.rails.carts.components.RailVehicleComponent;
+import org.terasology.rails.carts.utils.MinecartHelper;
+import org.terasology.registry.In;
+
+/**
+ * Moves rail vehicles on clients along the rails from their {@link RailMotionComponent}, between the occasional
+ * location snapshots sent by the authority.
+ */
+@RegisterSystem(RegisterMode.REMOTE_CLIENT)
+public class RailMotionPredictionSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+    @In
+    private RailGraph railGraph;
+
+    private final TLongObjectMap<PredictedMotion> predictions = new TLongObjectHashMap<>();
+    private final Vector3f position = new Vector3f();
+    private final Vector3f segmentPoint = new Vector3f();
+    private final Quat4f rotation = new Quat4f();
+
+    @Override
+    public void update(float delta) {
+        float blend = 1 - (float) Math.pow(1 - MoveDescriptor.DRIVE_BLEND, delta / MoveDescriptor.REFERENCE_STEP);
+        for (PredictedMotion prediction : predictions.valueCollection()) {
+            if (prediction.segment == null) {
+                continue;
+            }
+            LocationComponent location = prediction.entity.getComponent(LocationComponent.class);
+            if (location == null) {
+                continue;
+            }
+            if (prediction.drive > 0 && Math.abs(prediction.speed - prediction.drive) > 0.1f) {
+                prediction.speed += (prediction.drive - prediction.speed) * blend;
+            }
+            advance(prediction, prediction.speed * delta);
+            place(prediction, location);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        predictions.clear();
+    }
+
+    @ReceiveEvent(components = {RailMotionComponent.class, LocationComponent.class})
+    public void onRailMotionActivated(OnActivatedComponent event, EntityRef railVehicle) {
+        updatePrediction(railVehicle);
+    }
+
+    @ReceiveEvent(components = {RailMotionComponent.class, LocationComponent.class})
+    public void onRailMotionChanged(OnChangedComponent event, EntityRef railVehicle) {
+        // Either a new motion, or a snapshot of the location
+        updatePrediction(railVehicle);
+    }
+
+    @ReceiveEvent(components = {RailMotionComponent.class})
+    public void onRailMotionDeactivated(BeforeDeactivateComponent event, EntityRef railVehicle) {
+        predictions.remove(railVehicle.getId());
+    }
+
+    private void updatePrediction(EntityRef railVehicle) {
+        RailMotionComponent railMotion = railVehicle.getComponent(RailMotionComponent.class);
+        PredictedMotion prediction = predictions.get(railVehicle.getId());
+        if (prediction == null) {
+            prediction = new PredictedMotion(railVehicle);
+            RailVehicleComponent railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
+            prediction.yaw = railVehicleComponent != null ? railVehicleComponent.yaw : 0;
+            predictions.put(railVehicle.getId(), prediction);
+        } else if (prediction.revision == railMotion.revision) {
+            correct(prediction, railVehicle.getComponent(LocationComponent.class));
+            return;
+        }
+
+        prediction.revision = railMotion.revision;
+        prediction.speed = railMotion.speed;
+        prediction.drive = railMotion.drive;
+        prediction.heightAboveRail = railMotion.heightAboveRail;
+        prediction.node = railMotion.onRails ? railGraph.getNode(railMotion.block) : null;
+        if (prediction.node != null && railMotion.entry != null && railMotion.exit != null) {
+            prediction.segment = prediction.node.getSegment(railMotion.entry, railMotion.exit);
+            prediction.offset = railMotion.offset;
+        } else {
+            // Off the rails physics moves the vehicle, and the authority's snapshots keep it in place
+            prediction.segment = null;
+        }
+    }
+
+    /**
+     * Moves the prediction to where a location snapshot puts the vehicle, if it is still on the same segment.
+     */
+    private void correct(PredictedMotion prediction, LocationComponent location) {
+        if (prediction.segment == null || location == null) {
+            return;
+        }
+        location.getWorldPosition(position);
+        Vector3i blockPosition = prediction.node.getPosition();
+        if (Math.round(position.x) == blockPosition.x && Math.round(position.z) == blockPosition.z) {
+            prediction.offset = prediction.segment.project(position.x - blockPosition.x, position.z - blockPosition.z);
+        }
+    }
+
+    private void advance(PredictedMotion prediction, float distance) {
+        prediction.offset += distance;
+        while (prediction.offset > prediction.segment.getLength()) {
+            Side exit = prediction.segment.getTo();
+            RailNode next = prediction.node.getLink(exit);
+            if (next == null) {
+                // End of the known track; wait for the authority to tell where the vehicle went
+                prediction.offset = prediction.segment.getLength();
+                return;
+            }
+            prediction.offset -= prediction.segment.getLength();
+            Vector3i direction = exit.getVector3i();
+            prediction.segment = next.getSegment(exit.reverse(), direction.x, direction.z);
+            prediction.node = next;
+        }
+    }
+
+    private void place(PredictedMotion prediction, LocationComponent location) {
+        TrackSegment segment = prediction.segment;
+        Vector3i blockPosition = prediction.node.getPosition();
+        segment.getPoint(prediction.offset, segmentPoint);
+        position.x = blockPosition.x + segmentPoint.x;
+        position.z = blockPosition.z + segmentPoint.z;
+        position.y = prediction.node.getSurfaceHeight(position.x, position.z) + prediction.heightAboveRail;
+
+        float trackYaw = segment.getYaw(prediction.offset);
+        prediction.yaw = MinecartHelper.alignYaw(prediction.yaw, trackYaw);
+        float pitch = prediction.yaw == trackYaw ? segment.getPitch(prediction.offset) : -segment.getPitch(prediction.offset);
+        MinecartHelper.setYawPitch(rotation, TeraMath.DEG_TO_RAD * prediction.yaw, TeraMath.DEG_TO_RAD * pitch);
+
+        location.setWorldPosition(position);
+        location.setWorldRotation(rotation);
+    }
+
+    private static final class PredictedMotion {
+        private final EntityRef entity;
+        private int revision = -1;
+        private RailNode node;
+        private TrackSegment segment;
+        private float offset;
+        private float speed;
+        private float drive;
+        private float heightAboveRail;
+        private float yaw;
+
+        private PredictedMotion(EntityRef entity) {
+            this.entity = entity;
+        }
+    }
+}
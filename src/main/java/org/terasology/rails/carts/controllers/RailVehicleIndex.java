@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.carts.controllers;
+
+import com.google.common.collect.Lists;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.rails.blocks.RailGraph;
+
+import java.util.List;
+
+/**
+ * Positions of the active rail vehicles in a uniform grid, so vehicles near a point or along a track can be found
+ * without physics queries. Kept up to date by {@link MinecartSystem} as it activates, steps and deactivates vehicles;
+ * sleeping vehicles keep the position of their last step.
+ */
+public class RailVehicleIndex {
+    private static final int CELL_POWER = 2;
+    // Vehicles further than this from the line of a query along a track are on another track
+    private static final float TRACK_TOLERANCE = 0.5f;
+
+    private TLongObjectMap<List<Entry>> cells = new TLongObjectHashMap<>();
+    private TLongObjectMap<Entry> entries = new TLongObjectHashMap<>();
+
+    public void update(EntityRef railVehicle, Vector3f position) {
+        Entry entry = entries.get(railVehicle.getId());
+        long cell = cellKey(position.x, position.y, position.z);
+        if (entry == null) {
+            entry = new Entry(railVehicle);
+            entries.put(railVehicle.getId(), entry);
+        } else if (entry.cell != cell) {
+            removeFromCell(entry);
+        } else {
+            entry.position.set(position);
+            return;
+        }
+        entry.position.set(position);
+        entry.cell = cell;
+        List<Entry> cellEntries = cells.get(cell);
+        if (cellEntries == null) {
+            cellEntries = Lists.newArrayListWithCapacity(4);
+            cells.put(cell, cellEntries);
+        }
+        cellEntries.add(entry);
+    }
+
+    public void remove(EntityRef railVehicle) {
+        Entry entry = entries.remove(railVehicle.getId());
+        if (entry != null) {
+            removeFromCell(entry);
+        }
+    }
+
+    /**
+     * Adds the vehicles within the given distance of a position on every axis to the result.
+     */
+    public List<EntityRef> getVehiclesNear(Vector3f position, float distance, List<EntityRef> result) {
+        int minX = cellCoordinate(position.x - distance);
+        int maxX = cellCoordinate(position.x + distance);
+        int minY = cellCoordinate(position.y - distance);
+        int maxY = cellCoordinate(position.y + distance);
+        int minZ = cellCoordinate(position.z - distance);
+        int maxZ = cellCoordinate(position.z + distance);
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                for (int z = minZ; z <= maxZ; z++) {
+                    List<Entry> cellEntries = cells.get(RailGraph.key(x, y, z));
+                    if (cellEntries == null) {
+                        continue;
+                    }
+                    for (Entry entry : cellEntries) {
+                        if (Math.abs(entry.position.x - position.x) <= distance && Math.abs(entry.position.y - position.y) <= distance
+                                && Math.abs(entry.position.z - position.z) <= distance) {
+                            result.add(entry.railVehicle);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the closest vehicle ahead of the position in the given horizontal direction, up to the given distance,
+     * other than the one excluded; or null
+     */
+    public EntityRef getNextAlong(Vector3f position, Vector3f direction, float distance, EntityRef exclude) {
+        float length = (float) Math.sqrt(direction.x * direction.x + direction.z * direction.z);
+        if (length == 0) {
+            return null;
+        }
+        float dirX = direction.x / length;
+        float dirZ = direction.z / length;
+        float searchDistance = distance + TRACK_TOLERANCE;
+        int minX = cellCoordinate(position.x - searchDistance);
+        int maxX = cellCoordinate(position.x + searchDistance);
+        int minY = cellCoordinate(position.y - searchDistance);
+        int maxY = cellCoordinate(position.y + searchDistance);
+        int minZ = cellCoordinate(position.z - searchDistance);
+        int maxZ = cellCoordinate(position.z + searchDistance);
+        EntityRef closest = null;
+        float closestAlong = Float.POSITIVE_INFINITY;
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                for (int z = minZ; z <= maxZ; z++) {
+                    List<Entry> cellEntries = cells.get(RailGraph.key(x, y, z));
+                    if (cellEntries == null) {
+                        continue;
+                    }
+                    for (Entry entry : cellEntries) {
+                        float dx = entry.position.x - position.x;
+                        float dz = entry.position.z - position.z;
+                        float along = dx * dirX + dz * dirZ;
+                        float across = Math.abs(dz * dirX - dx * dirZ);
+                        if (along > 0 && along <= distance && along < closestAlong && across <= TRACK_TOLERANCE
+                                && Math.abs(entry.position.y - position.y) <= 1 && !entry.railVehicle.equals(exclude)) {
+                            closest = entry.railVehicle;
+                            closestAlong = along;
+                        }
+                    }
+                }
+            }
+        }
+        return closest;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        cells.clear();
+        entries.clear();
+    }
+
+    private void removeFromCell(Entry entry) {
+        List<Entry> cellEntries = cells.get(entry.cell);
+        if (cellEntries != null) {
+            cellEntries.remove(entry);
+            if (cellEntries.isEmpty()) {
+                cells.remove(entry.cell);
+            }
+        }
+    }
+
+    private static long cellKey(float x, float y, float z) {
+        return RailGraph.key(cellCoordinate(x), cellCoordinate(y), cellCoordinate(z));
+    }
+
+    private static int cellCoordinate(float value) {
+        return Math.round(value) >> CELL_POWER;
+    }
+
+    private static final class Entry {
+        private final EntityRef railVehicle;
+        private final Vector3f position = new Vector3f();
+        private long cell;
+
+        private Entry(EntityRef railVehicle) {
+            this.railVehicle = railVehicle;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.carts.controllers;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.TObjectFloatMap;
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import org.terasology.math.Side;
+import org.terasology.math.TeraMath;
+import org.terasology.math.geom.Quat4f;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.rails.blocks.ConnectsToRailsComponent;
+import org.terasology.rails.blocks.RailGraph;
+import org.terasology.rails.blocks.RailNode;
+import org.terasology.rails.blocks.RailRouter;
+import org.terasology.rails.blocks.TrackSegment;
+import org.terasology.rails.carts.components.RailVehicleComponent;
+import org.terasology.rails.carts.utils.MinecartHelper;
+import org.terasology.world.WorldProvider;
+import org.terasology.world.block.Block;
+
+/**
+ * Moves one rail vehicle, or one train, through a step of the rail simulation.
+ * Works only on the components gathered into the {@link MotionState}s beforehand and never touches the entity system,
+ * so independent vehicles can be stepped on different threads. Every thread needs its own stepper for the scratch state.
+ */
+public class RailVehicleStepper {
+    private static final float RAIL_SEARCH_DEPTH = 3.3f;
+    // Vehicles are moved at most half a block per substep, so every corner is seen past its centre
+    private static final float MAX_SUBSTEP_DISTANCE = 0.5f;
+    private static final int MAX_SUBSTEPS = 32;
+    // Distance between the centres of coupled vehicles, measured along the track
+    static final float WAGON_SPACING = 1.35f;
+    private static final float TRAIL_MARGIN = 16f;
+    private static final Vector3i ORIGIN = new Vector3i();
+
+    private final RailGraph railGraph;
+    private final RailRouter railRouter;
+    private final WorldProvider worldProvider;
+    private final MoveDescriptor moveDescriptor = new MoveDescriptor();
+
+    private final BlockInfo currentBlock = new BlockInfo();
+    private final Vector3f position = new Vector3f();
+    private final Vector3f correctedPosition = new Vector3f();
+    private final Vector3f segmentPoint = new Vector3f();
+    private final Vector3f planeDirection = new Vector3f();
+    private final Vector3f travel = new Vector3f();
+    private final Quat4f rotation = new Quat4f();
+    private final Vector3f trailPosition = new Vector3f();
+    private final Vector3f trailTangent = new Vector3f();
+    private final Vector3i wagonBlockPosition = new Vector3i();
+    // Top of each solid block vehicles came down on, relative to its position; shapes other than cubes differ
+    private final TObjectFloatMap<Block> blockTops = new TObjectFloatHashMap<>(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Float.NaN);
+
+    // Metrics since the last reset; read and reset by MinecartSystem once all steps of a tick are done
+    boolean timing;
+    int blockProbes;
+    long blockLookupTime;
+    long calculateDirectionTime;
+    long correctPositionTime;
+
+    public RailVehicleStepper(RailGraph railGraph, RailRouter railRouter, WorldProvider worldProvider) {
+        this.railGraph = railGraph;
+        this.railRouter = railRouter;
+        this.worldProvider = worldProvider;
+    }
+
+    /**
+     * Moves the vehicle and places the wagons of its train. The velocity to hand to physics is left in {@link MotionState#velocity}.
+     */
+    public void step(MotionState motionState, float delta) {
+        moveRailVehicle(motionState, delta);
+        if (!motionState.train.isEmpty()) {
+            solveTrain(motionState);
+        }
+    }
+
+    private void moveRailVehicle(MotionState motionState, float delta) {
+        RailVehicleComponent railVehicleComponent = motionState.railVehicleComponent;
+        motionState.location.getWorldPosition(position);
+        motionState.velocity.set(motionState.rigidBody.velocity);
+        motionState.angularFactor.set(motionState.rigidBody.angularFactor);
+
+        int substeps = getSubstepCount(motionState, railVehicleComponent, position);
+        if (substeps > 1) {
+            // The vehicle went further than one substep since the last step, so the move is replayed along the rails
+            // from the last corrected position; otherwise a corner passed in between would be missed
+            travel.set(position);
+            travel.sub(motionState.prevPosition);
+            float stepLength = (float) Math.sqrt(travel.x * travel.x + travel.z * travel.z) / substeps;
+            float stepRise = travel.y / substeps;
+            for (int i = 0; i < substeps && motionState.currentPositionStatus == MotionState.PositionStatus.ON_THE_PATH; i++) {
+                planeDirection.set(railVehicleComponent.direction.x, 0, railVehicleComponent.direction.z);
+                planeDirection.normalize();
+                position.set(motionState.prevPosition);
+                position.x += planeDirection.x * stepLength;
+                position.y += stepRise;
+                position.z += planeDirection.z * stepLength;
+                stepRailVehicle(motionState, delta / substeps);
+            }
+        } else {
+            stepRailVehicle(motionState, delta);
+        }
+    }
+
+    private int getSubstepCount(MotionState motionState, RailVehicleComponent railVehicleComponent, Vector3f newPosition) {
+        if (motionState.currentPositionStatus != MotionState.PositionStatus.ON_THE_PATH
+                || (railVehicleComponent.direction.x == 0 && railVehicleComponent.direction.z == 0)) {
+            return 1;
+        }
+        float dx = newPosition.x - motionState.prevPosition.x;
+        float dz = newPosition.z - motionState.prevPosition.z;
+        int substeps = (int) Math.ceil(Math.sqrt(dx * dx + dz * dz) / MAX_SUBSTEP_DISTANCE);
+        // Anything further than this was a teleport rather than a move along the rails
+        return substeps > MAX_SUBSTEPS ? 1 : Math.max(1, substeps);
+    }
+
+    /**
+     * Runs the rail logic for the vehicle at {@link #position}, correcting its velocity and location.
+     */
+    private void stepRailVehicle(MotionState motionState, float delta) {
+        RailVehicleComponent railVehicleComponent = motionState.railVehicleComponent;
+        Vector3f velocity = motionState.velocity;
+        int slopeFactor = 0;
+        motionState.segment = null;
+        if (!railVehicleComponent.pathDirection.equals(MinecartSystem.FREE_MOTION) || !railVehicleComponent.pathDirection.equals(MinecartSystem.LOCKED_MOTION)) {
+            RailNode currentNode = railGraph.getNode(motionState.currentBlockPosition);
+            RailNode nextNode = railGraph.getNextNode(currentNode, railVehicleComponent.direction.x, railVehicleComponent.direction.z);
+            if (nextNode != null && nextNode.isSlope() && nextNode.getPosition().y >= currentNode.getPosition().y) {
+                slopeFactor = 1;
+                motionState.nextBlockIsSlope = true;
+            }
+        }
+
+        long start = timing ? System.nanoTime() : 0;
+        findBlockUnder(position, RAIL_SEARCH_DEPTH, currentBlock);
+        if (timing) {
+            blockLookupTime += System.nanoTime() - start;
+        }
+
+        if (!currentBlock.isEmptyBlock()) {
+            if (slopeFactor == 0 && currentBlock.isRails() && currentBlock.isSlope()) {
+                if (currentBlock.getBlockPosition().y < motionState.prevBlockPosition.y) {
+                    slopeFactor = -1;
+                } else {
+                    slopeFactor = 1;
+                    motionState.nextBlockIsSlope = false;
+                }
+            }
+
+            if (slopeFactor == 0) {
+                motionState.nextBlockIsSlope = false;
+            }
+
+            if (currentBlock.isRails()) {
+                boolean isSameBlock = currentBlock.isSameBlock(motionState.currentBlockPosition);
+                if (isSameBlock && !isLowSpeed(railVehicleComponent.drive, velocity.length()) && slopeFactor == 0 && !currentBlock.isCorner() && railVehicleComponent.parentNode == null) {
+                    motionState.setCurrentState(railVehicleComponent.pathDirection, railVehicleComponent.direction, motionState.angularFactor, currentBlock.getBlockPosition(), MotionState.PositionStatus.ON_THE_PATH);
+                } else {
+                    if (!isSameBlock) {
+                        motionState.yawSign = 0;
+                    }
+
+                    motionState.setCurrentBlockPosition(currentBlock.getBlockPosition());
+                    motionState.routedExit = getRoutedExit(currentBlock.getNode(), motionState, railVehicleComponent);
+                    start = timing ? System.nanoTime() : 0;
+                    moveDescriptor.calculateDirection(velocity, currentBlock, railVehicleComponent, motionState, position, slopeFactor, delta);
+                    if (timing) {
+                        calculateDirectionTime += System.nanoTime() - start;
+                    }
+                    motionState.setCurrentState(railVehicleComponent.pathDirection, railVehicleComponent.direction, MinecartSystem.LOCKED_MOTION, currentBlock.getBlockPosition(), MotionState.PositionStatus.ON_THE_PATH);
+                    if (motionState.prevBlockPosition.length() > 0) {
+                        if (velocity.y > 0 && slopeFactor < 1) {
+                            RailNode prevNode = railGraph.getNode(motionState.prevBlockPosition);
+
+                            if (prevNode != null && prevNode.isSlope()) {
+                                velocity.y *= -1;
+                            }
+                        }
+                    }
+                    if (!isSameBlock) {
+                        motionState.showSmoke = true;
+                    }
+                }
+
+                start = timing ? System.nanoTime() : 0;
+                correctPositionAndRotation(railVehicleComponent, currentBlock, motionState, position);
+                if (timing) {
+                    correctPositionTime += System.nanoTime() - start;
+                }
+            } else {
+                railVehicleComponent.direction.y = 0;
+                motionState.setCurrentState(MinecartSystem.FREE_MOTION, railVehicleComponent.direction, MinecartSystem.FREE_MOTION, currentBlock.getBlockPosition(), MotionState.PositionStatus.ON_THE_GROUND);
+            }
+        } else {
+            railVehicleComponent.direction.y = 0;
+            motionState.setCurrentState(MinecartSystem.FREE_MOTION, railVehicleComponent.direction, MinecartSystem.FREE_MOTION, currentBlock.getBlockPosition(), MotionState.PositionStatus.ON_THE_AIR);
+        }
+    }
+
+    private void correctPositionAndRotation(RailVehicleComponent railVehicleComponent, BlockInfo blockInfo, MotionState motionState, Vector3f vehiclePosition) {
+        Vector3f position = correctedPosition;
+        position.set(vehiclePosition);
+
+        if (railVehicleComponent.isCreated && motionState.currentPositionStatus == MotionState.PositionStatus.ON_THE_PATH) {
+            RailNode node = blockInfo.getNode();
+            TrackSegment segment = getSegment(node, motionState, railVehicleComponent);
+            if (segment != null) {
+                Vector3i blockPosition = node.getPosition();
+                float along = segment.project(position.x - blockPosition.x, position.z - blockPosition.z);
+                segment.getPoint(along, segmentPoint);
+                position.x = blockPosition.x + segmentPoint.x;
+                position.z = blockPosition.z + segmentPoint.z;
+                float trackYaw = segment.getYaw(along);
+                railVehicleComponent.yaw = MinecartHelper.alignYaw(railVehicleComponent.yaw, trackYaw);
+                railVehicleComponent.pitch = railVehicleComponent.yaw == trackYaw ? segment.getPitch(along) : -segment.getPitch(along);
+                motionState.segmentNode = node;
+                motionState.segment = segment;
+                motionState.segmentOffset = along;
+            }
+            position.y = node.getSurfaceHeight(position.x, position.z) + Math.max(0, motionState.heightAboveRail);
+
+            MinecartHelper.setYawPitch(rotation, TeraMath.DEG_TO_RAD * railVehicleComponent.yaw, TeraMath.DEG_TO_RAD * railVehicleComponent.pitch);
+
+            motionState.prevPosition.set(position);
+
+            motionState.location.setWorldPosition(position);
+            motionState.location.setWorldRotation(rotation);
+        }
+    }
+
+    /**
+     * @return the segment of its rail block the vehicle follows, judged by the block it came from or else by its direction
+     */
+    private TrackSegment getSegment(RailNode node, MotionState motionState, RailVehicleComponent railVehicleComponent) {
+        Vector3f direction = railVehicleComponent.direction;
+        Side entry = getEntry(node, motionState, railVehicleComponent);
+        return entry != null ? node.getSegment(entry, direction.x, direction.z) : null;
+    }
+
+    /**
+     * @return the way out of the junction the vehicle is on that leads to its destination, or null to let the
+     * junction decide
+     */
+    private Side getRoutedExit(RailNode node, MotionState motionState, RailVehicleComponent railVehicleComponent) {
+        if (motionState.destination == null || node == null
+                || (node.getType() != ConnectsToRailsComponent.RAILS.TEE && node.getType() != ConnectsToRailsComponent.RAILS.TEE_INVERSED)) {
+            return null;
+        }
+        Side entry = getEntry(node, motionState, railVehicleComponent);
+        return entry != null ? railRouter.getExit(node, entry, motionState.destination) : null;
+    }
+
+    private Side getEntry(RailNode node, MotionState motionState, RailVehicleComponent railVehicleComponent) {
+        Vector3i blockPosition = node.getPosition();
+        Vector3f direction = railVehicleComponent.direction;
+        float fromX = motionState.prevBlockPosition.x - blockPosition.x;
+        float fromZ = motionState.prevBlockPosition.z - blockPosition.z;
+        Side entry = null;
+        if (Math.abs(fromX) + Math.abs(fromZ) == 1) {
+            entry = Side.inHorizontalDirection(fromX, fromZ);
+        }
+        if ((entry == null || !node.isConnected(entry)) && (direction.x != 0 || direction.z != 0)) {
+            entry = Side.inHorizontalDirection(-direction.x, -direction.z);
+        }
+        return entry;
+    }
+
+    /**
+     * Places the wagons coupled behind the locomotive along the track it has travelled, each at a fixed distance
+     * behind the one in front of it. The wagons are not simulated on their own while coupled.
+     */
+    private void solveTrain(MotionState locomotiveState) {
+        if (locomotiveState.currentPositionStatus != MotionState.PositionStatus.ON_THE_PATH) {
+            return;
+        }
+        if (locomotiveState.trail == null) {
+            locomotiveState.trail = new TrainTrail();
+        }
+        TrainTrail trail = locomotiveState.trail;
+        int wagons = locomotiveState.train.size();
+        if (wagons != locomotiveState.trailWagons) {
+            // The train was coupled or split, so the trail is laid anew through where its vehicles are now
+            trail.clear();
+            for (int i = wagons - 1; i >= 0; i--) {
+                addToTrail(trail, locomotiveState.train.get(i));
+            }
+            locomotiveState.trailWagons = wagons;
+        }
+        trail.setKeepLength(wagons * WAGON_SPACING + TRAIL_MARGIN);
+        addToTrail(trail, locomotiveState);
+
+        Vector3f velocity = locomotiveState.velocity;
+        float speed = (float) Math.sqrt(velocity.x * velocity.x + velocity.z * velocity.z);
+        for (int i = 0; i < wagons; i++) {
+            placeWagon(locomotiveState.train.get(i), trail, (i + 1) * WAGON_SPACING, speed);
+        }
+    }
+
+    private void addToTrail(TrainTrail trail, MotionState motionState) {
+        motionState.location.getWorldPosition(trailPosition);
+        trail.add(trailPosition.x, trailPosition.y - Math.max(0, motionState.heightAboveRail), trailPosition.z);
+    }
+
+    private void placeWagon(MotionState wagonState, TrainTrail trail, float offset, float speed) {
+        if (!trail.sample(offset, trailPosition, trailTangent)) {
+            return;
+        }
+        RailVehicleComponent wagonComponent = wagonState.railVehicleComponent;
+
+        // The trail points towards the locomotive; the wagon keeps facing whichever way it did before
+        float trackYaw = TeraMath.RAD_TO_DEG * (float) Math.atan2(trailTangent.x, trailTangent.z);
+        if (trackYaw < 0) {
+            trackYaw += 360;
+        }
+        float horizontal = (float) Math.sqrt(trailTangent.x * trailTangent.x + trailTangent.z * trailTangent.z);
+        float trackPitch = -TeraMath.RAD_TO_DEG * (float) Math.atan2(trailTangent.y, horizontal);
+        wagonComponent.yaw = MinecartHelper.alignYaw(wagonComponent.yaw, trackYaw);
+        wagonComponent.pitch = wagonComponent.yaw == trackYaw ? trackPitch : -trackPitch;
+        wagonComponent.direction.set(Math.signum(trailTangent.x), Math.signum(trailTangent.y), Math.signum(trailTangent.z));
+        wagonComponent.pathDirection.set(Math.abs(wagonComponent.direction.x), 1, Math.abs(wagonComponent.direction.z));
+
+        wagonBlockPosition.set(Math.round(trailPosition.x), Math.round(trailPosition.y), Math.round(trailPosition.z));
+        trailPosition.y += Math.max(0, wagonState.heightAboveRail);
+        MinecartHelper.setYawPitch(rotation, TeraMath.DEG_TO_RAD * wagonComponent.yaw, TeraMath.DEG_TO_RAD * wagonComponent.pitch);
+        wagonState.location.setWorldPosition(trailPosition);
+        wagonState.location.setWorldRotation(rotation);
+
+        wagonState.prevPosition.set(trailPosition);
+        wagonState.setCurrentBlockPosition(wagonBlockPosition);
+        wagonState.currentPositionStatus = MotionState.PositionStatus.ON_THE_PATH;
+        wagonState.angularFactor.set(MinecartSystem.LOCKED_MOTION);
+        wagonState.velocity.set(trailTangent);
+        wagonState.velocity.scale(speed);
+        setWagonSegment(wagonState);
+    }
+
+    /**
+     * Finds the segment under a wagon placed by its train, which the wagon does not follow itself.
+     */
+    private void setWagonSegment(MotionState wagonState) {
+        wagonState.segment = null;
+        RailNode node = railGraph.getNode(wagonBlockPosition);
+        if (node == null) {
+            // Near the top of a slope the rail surface rounds to the block above
+            node = railGraph.getNode(wagonBlockPosition.x, wagonBlockPosition.y - 1, wagonBlockPosition.z);
+        }
+        if (node == null || (trailTangent.x == 0 && trailTangent.z == 0)) {
+            return;
+        }
+        Side entry = Side.inHorizontalDirection(-trailTangent.x, -trailTangent.z);
+        if (!node.isConnected(entry)) {
+            return;
+        }
+        Vector3i blockPosition = node.getPosition();
+        wagonState.segmentNode = node;
+        wagonState.segment = node.getSegment(entry, trailTangent.x, trailTangent.z);
+        wagonState.segmentOffset = wagonState.segment.project(trailPosition.x - blockPosition.x, trailPosition.z - blockPosition.z);
+    }
+
+    void resetMetrics() {
+        blockProbes = 0;
+        blockLookupTime = 0;
+        calculateDirectionTime = 0;
+        correctPositionTime = 0;
+    }
+
+    private boolean isLowSpeed(float drive, float velocitySpeed) {
+        float driveSpeed = drive / 100;
+        return (velocitySpeed / driveSpeed) < 90;
+    }
+
+    private void findBlockUnder(Vector3f from, float depth, BlockInfo result) {
+        int x = Math.round(from.x);
+        int z = Math.round(from.z);
+        int bottom = Math.round(from.y - depth);
+        for (int y = Math.round(from.y); y >= bottom; y--) {
+            RailNode node = railGraph.getNode(x, y, z);
+            if (node != null) {
+                result.set(node.getBlock(), node.getPosition(), node, from.x, node.getSurfaceHeight(from.x, from.z), from.z);
+                return;
+            }
+            Block block = worldProvider.getBlock(x, y, z);
+            blockProbes++;
+            if (!block.isPenetrable()) {
+                result.set(block, x, y, z, from.x, y + getTopOffset(block), from.z);
+                return;
+            }
+        }
+        result.clear();
+    }
+
+    /**
+     * @return the height of the block's top above its position, taken from its bounds once per block
+     */
+    private float getTopOffset(Block block) {
+        float offset = blockTops.get(block);
+        if (Float.isNaN(offset)) {
+            offset = block.getBounds(ORIGIN).getMax().y;
+            blockTops.put(block, offset);
+        }
+        return offset;
+    }
+}
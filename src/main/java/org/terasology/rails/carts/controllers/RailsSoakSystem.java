@@ -0,0 +1,430 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.carts.controllers;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.entitySystem.entity.EntityManager;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.logic.console.commandSystem.annotations.Sender;
+import org.terasology.logic.location.LocationComponent;
+import org.terasology.logic.permission.PermissionManager;
+import org.terasology.math.Side;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.network.ClientComponent;
+import org.terasology.rails.blocks.RailsUpdatesFamily;
+import org.terasology.rails.carts.components.RailVehicleComponent;
+import org.terasology.registry.In;
+import org.terasology.world.BlockEntityRegistry;
+import org.terasology.world.WorldProvider;
+import org.terasology.world.block.Block;
+import org.terasology.world.block.BlockManager;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Soak test for the rail simulation, run from the console of a headless server. Lays out a grid of looped tracks
+ * with curves, slopes and tees next to the caller and fills them with carts and trains. The game then carries on as
+ * usual while the steps {@link MinecartSystem} takes are timed, and tick rate, tick time percentiles and heap growth
+ * are reported against a tick time budget. Everything that was placed is removed again afterwards.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+public class RailsSoakSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+    private static final Logger logger = LoggerFactory.getLogger(RailsSoakSystem.class);
+
+    // Each loop is a rectangle with a hill on its far side and a short spur, ending in a tee, on its near side
+    private static final int LOOP_LENGTH = 24;
+    private static final int LOOP_WIDTH = 12;
+    private static final int LOOP_GAP = 4;
+    private static final int HILL_START = 8;
+    private static final int HILL_END = 15;
+    private static final int SPUR_LENGTH = 3;
+    private static final int VEHICLE_SPACING = 3;
+    private static final int WARMUP_TICKS = 60;
+    private static final float VEHICLE_DRIVE = 5f;
+
+    @In
+    private EntityManager entityManager;
+    @In
+    private WorldProvider worldProvider;
+    @In
+    private BlockEntityRegistry blockEntityRegistry;
+    @In
+    private BlockManager blockManager;
+    @In
+    private MinecartSystem minecartSystem;
+
+    private MinecartFactory railVehicleFactory;
+    // Blocks replaced by the track, restored in reverse order when the run is over
+    private final Map<Vector3i, Block> replacedBlocks = Maps.newLinkedHashMap();
+    private final List<EntityRef> spawned = Lists.newArrayList();
+
+    // The run in progress, null when there is none, and the vehicle counts of the runs still to come
+    private SoakResult result;
+    private final Deque<Integer> queuedRuns = new ArrayDeque<>();
+    private final StringBuilder report = new StringBuilder();
+    private Vector3i origin;
+    private int ticks;
+    private float budgetMs;
+    private int wagons;
+    private int warmupTicks;
+    private long[] tickTimes;
+    private int measuredTicks;
+    private long lastStepCount;
+    private long heapBefore;
+
+    @Override
+    public void initialise() {
+        railVehicleFactory = new MinecartFactory();
+        railVehicleFactory.setEntityManager(entityManager);
+    }
+
+    @Override
+    public void shutdown() {
+        if (result != null) {
+            cleanUp();
+            result = null;
+        }
+        queuedRuns.clear();
+    }
+
+    @Command(shortDescription = "Runs the rail simulation soak test",
+            helpText = "Builds a test track next to you, spawns the given number of rail vehicles on it and times "
+                    + "the given number of rail simulation ticks. Fails if the 99th percentile tick time exceeds the "
+                    + "budget. Trains are a locomotive with the given number of wagons. See railsSoakStatus for "
+                    + "the results.",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String railsSoak(@Sender EntityRef sender,
+                            @CommandParam(value = "vehicles", required = false) Integer vehicles,
+                            @CommandParam(value = "ticks", required = false) Integer ticks,
+                            @CommandParam(value = "budgetMs", required = false) Float budgetMs,
+                            @CommandParam(value = "wagons", required = false) Integer wagons) {
+        // Trains have to fit on the near side of a loop
+        int trainWagons = wagons != null ? Math.max(0, Math.min(wagons, LOOP_LENGTH / 2 - 3)) : 3;
+        return start(sender, Collections.singletonList(vehicles != null ? vehicles : 100), ticks, budgetMs, trainWagons);
+    }
+
+    @Command(shortDescription = "Runs the rail simulation soak test at increasing scale",
+            helpText = "Runs the soak test with 10, 100, 1000 and so on vehicles, up to the given maximum, "
+                    + "and stops at the first run that exceeds the budget. See railsSoakStatus for the results.",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String railsSoakScale(@Sender EntityRef sender,
+                                 @CommandParam(value = "maxVehicles", required = false) Integer maxVehicles,
+                                 @CommandParam(value = "ticks", required = false) Integer ticks,
+                                 @CommandParam(value = "budgetMs", required = false) Float budgetMs) {
+        int max = maxVehicles != null ? maxVehicles : 10000;
+        List<Integer> runs = Lists.newArrayList();
+        for (int vehicles = 10; vehicles <= max; vehicles *= 10) {
+            runs.add(vehicles);
+        }
+        return start(sender, runs, ticks, budgetMs, 3);
+    }
+
+    @Command(shortDescription = "Shows the progress and results of the rail simulation soak test",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String railsSoakStatus() {
+        StringBuilder status = new StringBuilder(report);
+        if (result != null) {
+            status.append(String.format("Running: %d vehicles, %s", result.vehicles, warmupTicks < WARMUP_TICKS
+                    ? "warming up" : measuredTicks + " of " + tickTimes.length + " ticks"));
+            if (!queuedRuns.isEmpty()) {
+                status.append(", ").append(queuedRuns.size()).append(" more runs to go");
+            }
+        } else if (status.length() == 0) {
+            status.append("No soak test has been run");
+        }
+        return status.toString();
+    }
+
+    /**
+     * Times each step the rail simulation takes in the running game, so the run never holds up the game loop.
+     */
+    @Override
+    public void update(float delta) {
+        if (result == null) {
+            return;
+        }
+        long stepCount = minecartSystem.getStepCount();
+        if (stepCount == lastStepCount) {
+            return;
+        }
+        lastStepCount = stepCount;
+        if (warmupTicks < WARMUP_TICKS) {
+            warmupTicks++;
+            heapBefore = getUsedHeap();
+            return;
+        }
+        if (measuredTicks < tickTimes.length) {
+            tickTimes[measuredTicks++] = minecartSystem.getLastStepTime();
+        }
+        if (measuredTicks == tickTimes.length) {
+            finishRun();
+        }
+    }
+
+    private String start(EntityRef sender, List<Integer> runs, Integer ticks, Float budgetMs, int wagons) {
+        if (result != null) {
+            return "A soak test is already running, see railsSoakStatus";
+        }
+        Vector3i position = getOrigin(sender);
+        if (position == null) {
+            return "No character to build the test track next to";
+        }
+        origin = position;
+        this.ticks = ticks != null ? Math.max(0, ticks) : 600;
+        this.budgetMs = budgetMs != null ? budgetMs : 4f;
+        this.wagons = wagons;
+        report.setLength(0);
+        queuedRuns.addAll(runs);
+        startNextRun();
+        return "Soak test started, see railsSoakStatus for the results";
+    }
+
+    private void startNextRun() {
+        if (queuedRuns.isEmpty()) {
+            return;
+        }
+        result = new SoakResult(queuedRuns.poll(), budgetMs);
+        tickTimes = new long[ticks];
+        warmupTicks = 0;
+        measuredTicks = 0;
+        lastStepCount = minecartSystem.getStepCount();
+        try {
+            buildAndPopulate(origin, result.vehicles, wagons, result);
+        } catch (RuntimeException e) {
+            cleanUp();
+            result = null;
+            queuedRuns.clear();
+            throw e;
+        }
+    }
+
+    private void finishRun() {
+        // Without forcing a collection the heap growth is only indicative, but the game is not held up for one
+        result.heapGrowth = getUsedHeap() - heapBefore;
+        result.awake = minecartSystem.getAwakeCount();
+        result.setTickTimes(tickTimes);
+        cleanUp();
+        if (result.passed) {
+            logger.info("{}", result);
+        } else {
+            logger.error("{}", result);
+            queuedRuns.clear();
+        }
+        report.append(result).append('\n');
+        result = null;
+        startNextRun();
+    }
+
+    private long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void buildAndPopulate(Vector3i origin, int vehicles, int wagons, SoakResult result) {
+        RailsUpdatesFamily railsFamily = (RailsUpdatesFamily) blockManager.getBlockFamily("rails:Rails");
+        int perLoop = (2 * (LOOP_LENGTH + LOOP_WIDTH)) / VEHICLE_SPACING - 4;
+        int loops = (vehicles + perLoop - 1) / perLoop;
+        int gridSize = (int) Math.ceil(Math.sqrt(loops));
+
+        int remaining = vehicles;
+        for (int loop = 0; loop < loops; loop++) {
+            Vector3i corner = new Vector3i(origin.x + (loop % gridSize) * (LOOP_LENGTH + LOOP_GAP), origin.y,
+                    origin.z + (loop / gridSize) * (LOOP_WIDTH + LOOP_GAP + SPUR_LENGTH));
+            List<Vector3i> track = getLoopTrack(corner);
+            if (!isRelevant(track)) {
+                continue;
+            }
+            for (Vector3i position : track) {
+                placeRail(railsFamily, position);
+            }
+            result.loops++;
+            remaining -= populateLoop(corner, Math.min(remaining, perLoop), wagons);
+        }
+        result.spawned = vehicles - remaining;
+    }
+
+    private List<Vector3i> getLoopTrack(Vector3i corner) {
+        List<Vector3i> track = Lists.newArrayList();
+        for (int x = 0; x < LOOP_LENGTH; x++) {
+            track.add(new Vector3i(corner.x + x, corner.y, corner.z));
+            boolean hill = x > HILL_START && x < HILL_END;
+            track.add(new Vector3i(corner.x + x, corner.y + (hill ? 1 : 0), corner.z + LOOP_WIDTH - 1));
+        }
+        for (int z = 1; z < LOOP_WIDTH - 1; z++) {
+            track.add(new Vector3i(corner.x, corner.y, corner.z + z));
+            track.add(new Vector3i(corner.x + LOOP_LENGTH - 1, corner.y, corner.z + z));
+        }
+        for (int z = 1; z <= SPUR_LENGTH; z++) {
+            track.add(new Vector3i(corner.x + LOOP_LENGTH / 2, corner.y, corner.z - z));
+        }
+        return track;
+    }
+
+    /**
+     * Spawns vehicles on the straight ground level stretches of a loop: a train at the start of the near side,
+     * then single carts.
+     * @return the number of vehicles spawned
+     */
+    private int populateLoop(Vector3i corner, int count, int wagons) {
+        List<Vector3i> slots = Lists.newArrayList();
+        for (int x = wagons + 2; x < LOOP_LENGTH - 1; x += VEHICLE_SPACING) {
+            if (x != LOOP_LENGTH / 2) {
+                slots.add(new Vector3i(corner.x + x, corner.y, corner.z));
+            }
+        }
+        for (int z = 2; z < LOOP_WIDTH - 2; z += VEHICLE_SPACING) {
+            slots.add(new Vector3i(corner.x, corner.y, corner.z + z));
+            slots.add(new Vector3i(corner.x + LOOP_LENGTH - 1, corner.y, corner.z + z));
+        }
+        for (int x = 1; x < LOOP_LENGTH - 1; x += VEHICLE_SPACING) {
+            if (x < HILL_START || x > HILL_END) {
+                slots.add(new Vector3i(corner.x + x, corner.y, corner.z + LOOP_WIDTH - 1));
+            }
+        }
+
+        int placed = 0;
+        if (count > wagons && slots.size() > 0) {
+            EntityRef locomotive = spawn(slots.remove(0), RailVehicleComponent.Types.locomotive);
+            EntityRef previous = locomotive;
+            for (int wagon = 1; wagon <= wagons; wagon++) {
+                EntityRef minecart = spawn(new Vector3i(corner.x + wagons + 2 - wagon, corner.y, corner.z), RailVehicleComponent.Types.minecart);
+                railVehicleFactory.couple(locomotive, previous, minecart);
+                previous = minecart;
+            }
+            placed += wagons + 1;
+        }
+        while (placed < count && !slots.isEmpty()) {
+            spawn(slots.remove(0), RailVehicleComponent.Types.minecart);
+            placed++;
+        }
+        return placed;
+    }
+
+    private EntityRef spawn(Vector3i position, RailVehicleComponent.Types type) {
+        EntityRef railVehicle = railVehicleFactory.create(position.toVector3f(), type);
+        RailVehicleComponent railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
+        railVehicleComponent.drive = VEHICLE_DRIVE;
+        railVehicle.saveComponent(railVehicleComponent);
+        spawned.add(railVehicle);
+        return railVehicle;
+    }
+
+    private void placeRail(RailsUpdatesFamily railsFamily, Vector3i position) {
+        Block block = railsFamily.getBlockForPlacement(worldProvider, blockEntityRegistry, position, Side.TOP, Side.FRONT);
+        Block previous = worldProvider.setBlock(position, block);
+        if (previous != null && !replacedBlocks.containsKey(position)) {
+            replacedBlocks.put(position, previous);
+        }
+    }
+
+    private boolean isRelevant(List<Vector3i> track) {
+        for (Vector3i position : track) {
+            if (!worldProvider.isBlockRelevant(position)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void cleanUp() {
+        for (EntityRef railVehicle : spawned) {
+            if (railVehicle.exists()) {
+                RailVehicleComponent railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
+                if (railVehicleComponent != null && railVehicleComponent.pipe != null) {
+                    railVehicleComponent.pipe.destroy();
+                }
+                railVehicle.destroy();
+            }
+        }
+        spawned.clear();
+
+        List<Vector3i> positions = Lists.newArrayList(replacedBlocks.keySet());
+        for (int i = positions.size() - 1; i >= 0; i--) {
+            Vector3i position = positions.get(i);
+            worldProvider.setBlock(position, replacedBlocks.get(position));
+        }
+        replacedBlocks.clear();
+    }
+
+    private Vector3i getOrigin(EntityRef sender) {
+        ClientComponent client = sender.getComponent(ClientComponent.class);
+        LocationComponent location = client != null ? client.character.getComponent(LocationComponent.class) : null;
+        if (location == null) {
+            return null;
+        }
+        Vector3f position = location.getWorldPosition();
+        return new Vector3i(Math.round(position.x) + LOOP_GAP, Math.round(position.y), Math.round(position.z) + LOOP_GAP + SPUR_LENGTH);
+    }
+
+    private static final class SoakResult {
+        private final int vehicles;
+        private final float budgetMs;
+        private int loops;
+        private int spawned;
+        private int awake;
+        private long heapGrowth;
+        private double ticksPerSecond;
+        private double medianMs;
+        private double p99Ms;
+        private double maxMs;
+        private boolean passed;
+
+        private SoakResult(int vehicles, float budgetMs) {
+            this.vehicles = vehicles;
+            this.budgetMs = budgetMs;
+        }
+
+        private void setTickTimes(long[] tickTimes) {
+            if (tickTimes.length == 0) {
+                passed = true;
+                return;
+            }
+            long total = 0;
+            for (long tickTime : tickTimes) {
+                total += tickTime;
+            }
+            Arrays.sort(tickTimes);
+            ticksPerSecond = tickTimes.length / (total / 1e9);
+            medianMs = tickTimes[tickTimes.length / 2] / 1e6;
+            p99Ms = tickTimes[(int) Math.ceil(tickTimes.length * 0.99) - 1] / 1e6;
+            maxMs = tickTimes[tickTimes.length - 1] / 1e6;
+            passed = p99Ms <= budgetMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d of %d vehicles on %d loops, %d awake, %.0f ticks/s, median %.3f ms, p99 %.3f ms "
+                            + "(budget %.3f ms), max %.3f ms, heap growth %d KB",
+                    passed ? "PASS" : "FAIL", spawned, vehicles, loops, awake, ticksPerSecond, medianMs, p99Ms,
+                    budgetMs, maxMs, heapGrowth / 1024);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.carts.controllers;
+
+import org.terasology.math.geom.Vector3f;
+
+/**
+ * Recent rail positions of a locomotive with their distance along the track, so the wagons behind it
+ * can be placed at a fixed arc length from it. Points are kept in a ring buffer that grows to cover the train.
+ */
+public class TrainTrail {
+    private static final float MIN_SPACING = 0.25f;
+    // Lengths are measured from the oldest point again once it is this far along, before floats lose the spacing
+    private static final float REBASE_LENGTH = 1024f;
+
+    private float[] xs = new float[64];
+    private float[] ys = new float[64];
+    private float[] zs = new float[64];
+    private float[] lengths = new float[64];
+    private int first;
+    private int count;
+    private float keepLength;
+
+    public void clear() {
+        first = 0;
+        count = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Sets how far back along the track the trail has to reach before old points may be dropped.
+     */
+    public void setKeepLength(float keepLength) {
+        this.keepLength = keepLength;
+    }
+
+    /**
+     * Extends the trail to the given position. Moving back along the trail shortens it instead,
+     * and points closer than {@link #MIN_SPACING} to each other are merged.
+     */
+    public void add(float x, float y, float z) {
+        while (count >= 2 && dotFrom(count - 2, count - 1, x, y, z) <= 0) {
+            count--;
+        }
+        if (count >= 2 && (distance(count - 2, count - 1) < MIN_SPACING || dotFrom(count - 1, count - 2, x, y, z) > 0)) {
+            int head = index(count - 1);
+            xs[head] = x;
+            ys[head] = y;
+            zs[head] = z;
+            lengths[head] = lengths[index(count - 2)] + distance(count - 2, x, y, z);
+            return;
+        }
+        float length = 0;
+        if (count > 0) {
+            float step = distance(count - 1, x, y, z);
+            if (step == 0) {
+                return;
+            }
+            length = lengths[index(count - 1)] + step;
+        }
+        if (count == xs.length) {
+            if (lengths[index(count - 1)] - lengths[index(1)] >= keepLength) {
+                first = index(1);
+                count--;
+                if (lengths[first] >= REBASE_LENGTH) {
+                    length -= rebase();
+                }
+            } else {
+                grow();
+            }
+        }
+        int head = index(count);
+        xs[head] = x;
+        ys[head] = y;
+        zs[head] = z;
+        lengths[head] = length;
+        count++;
+    }
+
+    /**
+     * Finds the point the given distance behind the head of the trail, extrapolating past its oldest point.
+     *
+     * @param tangent set to the direction of travel at that point
+     * @return false if the trail does not have a segment yet
+     */
+    public boolean sample(float offset, Vector3f position, Vector3f tangent) {
+        if (count < 2) {
+            return false;
+        }
+        float target = lengths[index(count - 1)] - offset;
+
+        // Lengths only grow towards the head, so the segment can be found by binary search
+        int low = 1;
+        int high = count - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lengths[index(middle)] < target) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int a = index(low - 1);
+        int b = index(low);
+        float segment = lengths[b] - lengths[a];
+        if (segment < 0.0001f && low >= 2) {
+            b = a;
+            a = index(low - 2);
+            segment = lengths[b] - lengths[a];
+        }
+        float t = segment > 0 ? (target - lengths[a]) / segment : 1;
+        tangent.set(xs[b] - xs[a], ys[b] - ys[a], zs[b] - zs[a]);
+        position.set(xs[a] + tangent.x * t, ys[a] + tangent.y * t, zs[a] + tangent.z * t);
+        if (segment > 0) {
+            tangent.scale(1 / segment);
+        }
+        return true;
+    }
+
+    /**
+     * @return the length subtracted from every point
+     */
+    private float rebase() {
+        float offset = lengths[first];
+        for (int i = 0; i < count; i++) {
+            lengths[index(i)] -= offset;
+        }
+        return offset;
+    }
+
+    private void grow() {
+        int capacity = xs.length * 2;
+        xs = copy(xs, capacity);
+        ys = copy(ys, capacity);
+        zs = copy(zs, capacity);
+        lengths = copy(lengths, capacity);
+        first = 0;
+    }
+
+    private float[] copy(float[] values, int capacity) {
+        float[] result = new float[capacity];
+        for (int i = 0; i < count; i++) {
+            result[i] = values[(first + i) % values.length];
+        }
+        return result;
+    }
+
+    private int index(int i) {
+        return (first + i) % xs.length;
+    }
+
+    private float distance(int i, int j) {
+        int b = index(j);
+        return distance(i, xs[b], ys[b], zs[b]);
+    }
+
+    private float distance(int i, float x, float y, float z) {
+        int a = index(i);
+        float dx = x - xs[a];
+        float dy = y - ys[a];
+        float dz = z - zs[a];
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * Dot product of (from -> to) and (from -> point).
+     */
+    private float dotFrom(int from, int to, float x, float y, float z) {
+        int a = index(from);
+        int b = index(to);
+        return (xs[b] - xs[a]) * (x - xs[a]) + (ys[b] - ys[a]) * (y - ys[a]) + (zs[b] - zs[a]) * (z - zs[a]);
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.carts.controllers;
+
+import com.google.common.collect.Lists;
+import org.terasology.entitySystem.entity.EntityManager;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.logic.location.LocationComponent;
+import org.terasology.math.Side;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.math.geom.Vector3i;
+import org.terasology.physics.events.ChangeVelocityEvent;
+import org.terasology.rails.blocks.ConnectsToRailsComponent;
+import org.terasology.rails.blocks.RailGraph;
+import org.terasology.rails.blocks.RailNode;
+import org.terasology.rails.blocks.RailRouter;
+import org.terasology.rails.carts.components.LocomotiveComponent;
+import org.terasology.rails.carts.components.RailMotionComponent;
+import org.terasology.rails.carts.components.RailVehicleComponent;
+import org.terasology.rails.carts.components.UnloadedTrainsComponent;
+import org.terasology.rails.carts.components.UnloadedTrainsComponent.UnloadedTrain;
+import org.terasology.registry.In;
+import org.terasology.world.WorldComponent;
+import org.terasology.world.WorldProvider;
+import org.terasology.world.chunks.ChunkConstants;
+import org.terasology.world.chunks.event.BeforeChunkUnload;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps trains running when they leave the loaded area. A moving train whose vehicles would be unloaded is replaced
+ * by an {@link UnloadedTrain} record, which is moved along the {@link RailGraph} block by block at a coarse time step
+ * without loading any chunks. Once every block it covers is loaded again the train is turned back into vehicles.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+public class UnloadedTrainSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+    private static final float STEP = 1f;
+    // Slower trains without drive are left to stop where they are unloaded
+    private static final float MIN_SPEED = 0.5f;
+    // Speed lost per second by trains without drive
+    private static final float COAST_DECELERATION = 0.25f;
+
+    @In
+    private EntityManager entityManager;
+    @In
+    private WorldProvider worldProvider;
+    @In
+    private RailGraph railGraph;
+    @In
+    private RailRouter railRouter;
+
+    private MinecartFactory railVehicleFactory;
+    private float stepAccumulator;
+
+    @Override
+    public void initialise() {
+        railVehicleFactory = new MinecartFactory();
+        railVehicleFactory.setEntityManager(entityManager);
+    }
+
+    @Override
+    public void update(float delta) {
+        stepAccumulator += delta;
+        if (stepAccumulator < STEP) {
+            return;
+        }
+        float elapsed = stepAccumulator;
+        stepAccumulator = 0;
+
+        EntityRef worldEntity = worldProvider.getWorldEntity();
+        UnloadedTrainsComponent unloadedTrains = worldEntity.getComponent(UnloadedTrainsComponent.class);
+        if (unloadedTrains != null && !unloadedTrains.trains.isEmpty()) {
+            Iterator<UnloadedTrain> iterator = unloadedTrains.trains.iterator();
+            while (iterator.hasNext()) {
+                UnloadedTrain train = iterator.next();
+                advance(train, elapsed);
+                if (load(train)) {
+                    iterator.remove();
+                }
+            }
+            worldEntity.saveComponent(unloadedTrains);
+        }
+
+        // Vehicles can also run off the loaded area without their chunk unloading under them
+        List<EntityRef> leaving = Lists.newArrayList();
+        for (EntityRef railVehicle : entityManager.getEntitiesWith(RailVehicleComponent.class, RailMotionComponent.class)) {
+            RailMotionComponent railMotion = railVehicle.getComponent(RailMotionComponent.class);
+            if (railMotion.onRails && !worldProvider.isBlockRelevant(railMotion.block)) {
+                addLeading(leaving, railVehicle);
+            }
+        }
+        unload(leaving);
+    }
+
+    @ReceiveEvent(components = {WorldComponent.class})
+    public void onChunkUnloading(BeforeChunkUnload event, EntityRef worldEntity) {
+        Vector3i chunkPos = event.getChunkPos();
+        List<EntityRef> leaving = Lists.newArrayList();
+        for (EntityRef railVehicle : entityManager.getEntitiesWith(RailVehicleComponent.class, LocationComponent.class)) {
+            Vector3f position = railVehicle.getComponent(LocationComponent.class).getWorldPosition();
+            if (Math.round(position.x) >> ChunkConstants.POWER_X == chunkPos.x && Math.round(position.y) >> ChunkConstants.POWER_Y == chunkPos.y
+                    && Math.round(position.z) >> ChunkConstants.POWER_Z == chunkPos.z) {
+                // The whole train goes, even if only its tail is in the chunk
+                addLeading(leaving, railVehicle);
+            }
+        }
+        unload(leaving);
+    }
+
+    private void addLeading(List<EntityRef> leading, EntityRef railVehicle) {
+        RailVehicleComponent railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
+        EntityRef vehicle = railVehicle;
+        if (railVehicleComponent.parentNode != null && railVehicleComponent.locomotiveRef != null && railVehicleComponent.locomotiveRef.exists()) {
+            vehicle = railVehicleComponent.locomotiveRef;
+        }
+        if (!leading.contains(vehicle)) {
+            leading.add(vehicle);
+        }
+    }
+
+    private void unload(List<EntityRef> leading) {
+        List<UnloadedTrain> trains = Lists.newArrayList();
+        for (EntityRef railVehicle : leading) {
+            UnloadedTrain train = unload(railVehicle);
+            if (train != null) {
+                trains.add(train);
+            }
+        }
+        if (trains.isEmpty()) {
+            return;
+        }
+
+        EntityRef worldEntity = worldProvider.getWorldEntity();
+        UnloadedTrainsComponent unloadedTrains = worldEntity.getComponent(UnloadedTrainsComponent.class);
+        if (unloadedTrains == null) {
+            unloadedTrains = new UnloadedTrainsComponent();
+            unloadedTrains.trains.addAll(trains);
+            worldEntity.addComponent(unloadedTrains);
+        } else {
+            unloadedTrains.trains.addAll(trains);
+            worldEntity.saveComponent(unloadedTrains);
+        }
+    }
+
+    /**
+     * Replaces a moving train by a record of it.
+     *
+     * @return the record, or null if the train is left to be stored with its chunk
+     */
+    private UnloadedTrain unload(EntityRef leading) {
+        RailVehicleComponent railVehicleComponent = leading.getComponent(RailVehicleComponent.class);
+        RailMotionComponent railMotion = leading.getComponent(RailMotionComponent.class);
+        if (railVehicleComponent == null || railMotion == null || !railMotion.onRails || railMotion.exit == null
+                || (railVehicleComponent.drive == 0 && railMotion.speed < MIN_SPEED)) {
+            return null;
+        }
+        RailNode node = railGraph.getNode(railMotion.block);
+        if (node == null) {
+            return null;
+        }
+        List<EntityRef> vehicles = getTrain(leading, railVehicleComponent);
+        if (vehicles == null) {
+            return null;
+        }
+
+        UnloadedTrain train = new UnloadedTrain();
+        for (EntityRef railVehicle : vehicles) {
+            train.consist.add(railVehicle.getComponent(RailVehicleComponent.class).type);
+        }
+        train.exit = railMotion.exit;
+        train.progress = Math.min(railMotion.offset, 1f);
+        train.speed = railMotion.speed;
+        train.drive = railVehicleComponent.drive;
+        LocomotiveComponent locomotive = leading.getComponent(LocomotiveComponent.class);
+        if (locomotive != null && locomotive.destination != null) {
+            train.destination = new Vector3i(locomotive.destination);
+        }
+
+        // The wagons follow the track back through the side the leading vehicle entered by
+        int length = (int) Math.ceil((vehicles.size() - 1) * RailVehicleStepper.WAGON_SPACING) + 1;
+        train.blocks.add(new Vector3i(node.getPosition()));
+        Side back = railMotion.entry;
+        while (train.blocks.size() < length && back != null) {
+            RailNode previous = node.getLink(back);
+            if (previous == null) {
+                break;
+            }
+            train.blocks.add(new Vector3i(previous.getPosition()));
+            Vector3i direction = back.getVector3i();
+            back = previous.getExit(back.reverse(), direction.x, direction.z);
+            node = previous;
+        }
+
+        for (EntityRef railVehicle : vehicles) {
+            RailVehicleComponent component = railVehicle.getComponent(RailVehicleComponent.class);
+            if (component.pipe != null) {
+                component.pipe.destroy();
+            }
+            railVehicle.destroy();
+        }
+        return train;
+    }
+
+    /**
+     * @return the leading vehicle and its wagons in order, or null if anyone rides in them
+     */
+    private List<EntityRef> getTrain(EntityRef leading, RailVehicleComponent railVehicleComponent) {
+        List<EntityRef> vehicles = Lists.newArrayList(leading);
+        if (railVehicleComponent.characterInsideCart != null && railVehicleComponent.characterInsideCart.exists()) {
+            return null;
+        }
+        if (railVehicleComponent.type != RailVehicleComponent.Types.locomotive) {
+            return vehicles;
+        }
+        EntityRef previous = leading;
+        EntityRef wagon = railVehicleComponent.childNode;
+        while (wagon != null && wagon.exists() && !vehicles.contains(wagon)) {
+            RailVehicleComponent wagonComponent = wagon.getComponent(RailVehicleComponent.class);
+            if (wagonComponent == null || !previous.equals(wagonComponent.parentNode)) {
+                break;
+            }
+            if (wagonComponent.characterInsideCart != null && wagonComponent.characterInsideCart.exists()) {
+                return null;
+            }
+            vehicles.add(wagon);
+            previous = wagon;
+            wagon = wagonComponent.childNode;
+        }
+        return vehicles;
+    }
+
+    /**
+     * Moves the train along the graph by whole blocks. Junctions are taken towards the destination if there is one,
+     * otherwise straight on. A train that runs out of known track waits at its end and tries again every step.
+     */
+    private void advance(UnloadedTrain train, float elapsed) {
+        if (train.drive == 0) {
+            train.speed = Math.max(0, train.speed - COAST_DECELERATION * elapsed);
+        }
+        train.progress += train.speed * elapsed;
+        RailNode destination = train.destination != null ? railGraph.getNode(train.destination) : null;
+        if (destination != null) {
+            railRouter.prepare(destination);
+        }
+        while (train.progress >= 1) {
+            RailNode node = railGraph.getNode(train.blocks.get(0));
+            RailNode next = node != null ? node.getLink(train.exit) : null;
+            if (next == null) {
+                // Keeps its speed, so it carries on as soon as the track ahead is known
+                train.progress = 1;
+                return;
+            }
+            Side entry = train.exit.reverse();
+            Side exit = null;
+            if (destination != null && (next.getType() == ConnectsToRailsComponent.RAILS.TEE
+                    || next.getType() == ConnectsToRailsComponent.RAILS.TEE_INVERSED)) {
+                exit = railRouter.getExit(next, entry, destination);
+            }
+            if (exit == null) {
+                Vector3i direction = train.exit.getVector3i();
+                exit = next.getExit(entry, direction.x, direction.z);
+            }
+            train.blocks.add(0, new Vector3i(next.getPosition()));
+            train.blocks.remove(train.blocks.size() - 1);
+            train.exit = exit;
+            train.progress -= 1;
+        }
+    }
+
+    /**
+     * Turns the record back into vehicles, spaced out along the blocks it covers.
+     *
+     * @return false if some of those blocks are still not loaded
+     */
+    private boolean load(UnloadedTrain train) {
+        for (Vector3i block : train.blocks) {
+            if (!worldProvider.isBlockRelevant(block)) {
+                return false;
+            }
+        }
+
+        Vector3i direction = train.exit.getVector3i();
+        Vector3f velocity = new Vector3f(direction.x * train.speed, 0, direction.z * train.speed);
+        EntityRef leading = null;
+        EntityRef previous = null;
+        for (int i = 0; i < train.consist.size(); i++) {
+            Vector3i block = train.blocks.get(Math.min(Math.round(i * RailVehicleStepper.WAGON_SPACING), train.blocks.size() - 1));
+            EntityRef railVehicle = railVehicleFactory.create(block.toVector3f(), train.consist.get(i));
+            if (railVehicle == null) {
+                continue;
+            }
+            RailVehicleComponent railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
+            railVehicleComponent.direction.set(direction.x, 0, direction.z);
+            railVehicleComponent.pathDirection.set(Math.abs(direction.x), 1, Math.abs(direction.z));
+            railVehicleComponent.drive = leading == null ? train.drive : 0;
+            railVehicle.saveComponent(railVehicleComponent);
+            if (leading == null) {
+                leading = railVehicle;
+            } else if (leading.hasComponent(LocomotiveComponent.class)) {
+                railVehicleFactory.couple(leading, previous, railVehicle);
+            }
+            railVehicle.send(new ChangeVelocityEvent(velocity));
+            previous = railVehicle;
+        }
+
+        LocomotiveComponent locomotive = leading != null ? leading.getComponent(LocomotiveComponent.class) : null;
+        if (locomotive != null && train.destination != null) {
+            locomotive.destination = new Vector3i(train.destination);
+            leading.saveComponent(locomotive);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.carts.controllers;
+
+import com.google.common.collect.Lists;
+import gnu.trove.map.TLongFloatMap;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongFloatHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import org.terasology.entitySystem.entity.EntityBuilder;
+import org.terasology.entitySystem.entity.EntityManager;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnChangedComponent;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.logic.location.LocationComponent;
+import org.terasology.math.geom.Quat4f;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.rails.carts.components.RailVehicleComponent;
+import org.terasology.rails.carts.components.WheelComponent;
+import org.terasology.rails.carts.components.WheelsComponent;
+import org.terasology.rails.carts.utils.MinecartHelper;
+import org.terasology.registry.In;
+import org.terasology.rendering.logic.MeshComponent;
+
+import java.util.List;
+
+/**
+ * Shows the wheels of rail vehicles. The wheels are local to each client: they are never saved, replicated or
+ * simulated, and only exist to carry a mesh. Every frame they are placed on their vehicle and spun by how far it
+ * moved since the last frame.
+ */
+@RegisterSystem(RegisterMode.CLIENT)
+public class WheelRenderSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+    private static final Vector3f WHEEL_AXIS = new Vector3f(1f, 0f, 0f);
+
+    @In
+    private EntityManager entityManager;
+
+    private final TLongObjectMap<List<EntityRef>> wheels = new TLongObjectHashMap<>();
+    private final TLongObjectMap<Vector3f> lastPositions = new TLongObjectHashMap<>();
+    private final TLongFloatMap wheelAngles = new TLongFloatHashMap();
+    private final Vector3f position = new Vector3f();
+    private final Quat4f rotation = new Quat4f();
+    private final Quat4f vehicleRotation = new Quat4f();
+    private final Quat4f wheelRotation = new Quat4f();
+    private final Vector3f wheelPosition = new Vector3f();
+
+    @ReceiveEvent(components = {WheelsComponent.class, LocationComponent.class})
+    public void onWheelsActivated(OnActivatedComponent event, EntityRef railVehicle) {
+        removeWheels(railVehicle.getId());
+        List<EntityRef> vehicleWheels = Lists.newArrayList();
+        for (WheelsComponent.Wheel wheel : railVehicle.getComponent(WheelsComponent.class).wheels) {
+            vehicleWheels.add(createWheel(railVehicle, wheel));
+        }
+        wheels.put(railVehicle.getId(), vehicleWheels);
+    }
+
+    @ReceiveEvent(components = {WheelsComponent.class})
+    public void onWheelsDeactivated(BeforeDeactivateComponent event, EntityRef railVehicle) {
+        removeWheels(railVehicle.getId());
+    }
+
+    /**
+     * Wheels take on the material the vehicle is highlighted with.
+     */
+    @ReceiveEvent(components = {WheelsComponent.class})
+    public void onVehicleMeshChanged(OnChangedComponent event, EntityRef railVehicle, MeshComponent mesh) {
+        List<EntityRef> vehicleWheels = wheels.get(railVehicle.getId());
+        if (vehicleWheels == null) {
+            return;
+        }
+        for (EntityRef wheel : vehicleWheels) {
+            MeshComponent wheelMesh = wheel.getComponent(MeshComponent.class);
+            if (wheelMesh != null && wheelMesh.material != mesh.material) {
+                wheelMesh.material = mesh.material;
+                wheel.saveComponent(wheelMesh);
+            }
+        }
+    }
+
+    @Override
+    public void update(float delta) {
+        for (EntityRef railVehicle : entityManager.getEntitiesWith(RailVehicleComponent.class, WheelsComponent.class,
+                LocationComponent.class)) {
+            List<EntityRef> vehicleWheels = wheels.get(railVehicle.getId());
+            if (vehicleWheels == null) {
+                continue;
+            }
+            LocationComponent location = railVehicle.getComponent(LocationComponent.class);
+            location.getWorldPosition(position);
+            location.getWorldRotation(vehicleRotation);
+            float vehicleScale = location.getWorldScale();
+            rotation.set(WHEEL_AXIS, spin(railVehicle));
+            wheelRotation.set(vehicleRotation);
+            wheelRotation.mul(rotation);
+            for (EntityRef wheel : vehicleWheels) {
+                LocationComponent wheelLocation = wheel.getComponent(LocationComponent.class);
+                WheelComponent wheelComponent = wheel.getComponent(WheelComponent.class);
+                if (wheelLocation == null || wheelComponent == null) {
+                    continue;
+                }
+                wheelPosition.set(wheelComponent.position);
+                wheelPosition.scale(vehicleScale);
+                vehicleRotation.rotate(wheelPosition, wheelPosition);
+                wheelPosition.add(position);
+                wheelLocation.setWorldPosition(wheelPosition);
+                wheelLocation.setWorldRotation(wheelRotation);
+            }
+        }
+    }
+
+    /**
+     * Turns the wheels of the vehicle at {@link #position} by how far it moved since the last frame.
+     *
+     * @return the angle its wheels are at
+     */
+    private float spin(EntityRef railVehicle) {
+        Vector3f lastPosition = lastPositions.get(railVehicle.getId());
+        if (lastPosition == null) {
+            lastPositions.put(railVehicle.getId(), new Vector3f(position));
+            return wheelAngles.get(railVehicle.getId());
+        }
+        float moveX = position.x - lastPosition.x;
+        float moveZ = position.z - lastPosition.z;
+        lastPosition.set(position);
+        float distance = (float) Math.sqrt(moveX * moveX + moveZ * moveZ);
+        if (distance == 0) {
+            return wheelAngles.get(railVehicle.getId());
+        }
+
+        RailVehicleComponent railVehicleComponent = railVehicle.getComponent(RailVehicleComponent.class);
+        float reverseSign = Math.round(railVehicleComponent.yaw / 90f) > 1 ? -1 : 1;
+        float angleSign = moveX >= 0 && moveZ >= 0 ? 1 : -1;
+        // Same rate the wheels used to turn at when the authority spun them once per rail step
+        float turn = reverseSign * angleSign * distance / (MinecartHelper.TWO_PI * MoveDescriptor.REFERENCE_STEP);
+        // All wheels of a vehicle turn together, so one angle serves them all
+        float angle = (wheelAngles.get(railVehicle.getId()) + turn) % MinecartHelper.TWO_PI;
+        if (angle < 0) {
+            angle += MinecartHelper.TWO_PI;
+        }
+        wheelAngles.put(railVehicle.getId(), angle);
+        return angle;
+    }
+
+    @Override
+    public void shutdown() {
+        for (List<EntityRef> vehicleWheels : wheels.valueCollection()) {
+            for (EntityRef wheel : vehicleWheels) {
+                wheel.destroy();
+            }
+        }
+        wheels.clear();
+        lastPositions.clear();
+        wheelAngles.clear();
+    }
+
+    private EntityRef createWheel(EntityRef railVehicle, WheelsComponent.Wheel wheel) {
+        EntityBuilder builder = entityManager.newBuilder("rails:wheel");
+        builder.setPersistent(false);
+        WheelComponent wheelComponent = builder.getComponent(WheelComponent.class);
+        wheelComponent.parent = railVehicle;
+        wheelComponent.position = new Vector3f(wheel.position);
+        wheelComponent.scale = wheel.scale;
+        // The wheel has its own location rather than being attached to the vehicle, whose children are replicated
+        LocationComponent location = builder.getComponent(LocationComponent.class);
+        LocationComponent vehicleLocation = railVehicle.getComponent(LocationComponent.class);
+        location.setLocalScale(wheel.scale * vehicleLocation.getWorldScale());
+        return builder.build();
+    }
+
+    private void removeWheels(long railVehicleId) {
+        List<EntityRef> vehicleWheels = wheels.remove(railVehicleId);
+        if (vehicleWheels != null) {
+            for (EntityRef wheel : vehicleWheels) {
+                wheel.destroy();
+            }
+        }
+        lastPositions.remove(railVehicleId);
+        wheelAngles.remove(railVehicleId);
+    }
+}
@@ -17,6 +17,7 @@ package org.terasology.rails.carts.utils;
 
 import org.terasology.math.Side;
 import org.terasology.math.TeraMath;
+import org.terasology.math.geom.Quat4f;
 import org.terasology.math.geom.Vector3f;
 
 public final class MinecartHelper {
@@ -39,6 +40,30 @@ public final class MinecartHelper {
         in.z *= Math.signum(directionZ);
     }
 
+    /**
+     * Same rotation as {@code new Quat4f(yaw, pitch, 0)}, written into an existing quaternion.
+     */
+    public static void setYawPitch(Quat4f out, float yaw, float pitch) {
+        float halfYaw = yaw * 0.5f;
+        float halfPitch = pitch * 0.5f;
+        float cosYaw = (float) Math.cos(halfYaw);
+        float sinYaw = (float) Math.sin(halfYaw);
+        float cosPitch = (float) Math.cos(halfPitch);
+        float sinPitch = (float) Math.sin(halfPitch);
+        out.set(sinPitch * cosYaw, cosPitch * sinYaw, -sinPitch * sinYaw, cosPitch * cosYaw);
+    }
+
+    /**
+     * Vehicles can face either way along the track, so this keeps the one of the two yaws closest to the current one.
+     */
+    public static float alignYaw(float currentYaw, float trackYaw) {
+        float turn = Math.abs(trackYaw - currentYaw) % 360;
+        if (Math.min(turn, 360 - turn) > 90) {
+            return (trackYaw + 180) % 360;
+        }
+        return trackYaw;
+    }
+
     public static Side getSideOfLocomotive(Vector3f point, Vector3f locomotivePosition, float locomotiveYaw) {
         if (locomotiveYaw == 0 || locomotiveYaw == 90) {
             if (point.x < locomotivePosition.x || point.z < locomotivePosition.z) {
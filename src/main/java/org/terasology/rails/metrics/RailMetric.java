@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.metrics;
+
+/**
+ * What {@link RailMetrics} keeps track of. Per tick metrics are summed over a rail step and recorded once per step,
+ * the others are recorded as they happen. Phase timers are only taken while timing is enabled.
+ */
+public enum RailMetric {
+    AWAKE_VEHICLES(true, false, false),
+    SLEEPING_VEHICLES(true, false, false),
+    // Awake vehicles not stepped this tick because of their level of detail
+    DEFERRED_VEHICLES(true, false, false),
+    BLOCK_PROBES(true, false, false),
+    COMPONENT_SAVES(true, false, false),
+    EVENTS_SENT(true, false, false),
+    STEP_TIME(true, true, false),
+    BLOCK_LOOKUP_TIME(true, true, true),
+    CALCULATE_DIRECTION_TIME(true, true, true),
+    CORRECT_POSITION_TIME(true, true, true),
+    NEIGHBOUR_UPDATES(false, false, false);
+
+    private final boolean perTick;
+    private final boolean time;
+    private final boolean phaseTimer;
+
+    RailMetric(boolean perTick, boolean time, boolean phaseTimer) {
+        this.perTick = perTick;
+        this.time = time;
+        this.phaseTimer = phaseTimer;
+    }
+
+    public boolean isPerTick() {
+        return perTick;
+    }
+
+    /**
+     * @return true if the metric is a duration in nanoseconds
+     */
+    public boolean isTime() {
+        return time;
+    }
+
+    public boolean isPhaseTimer() {
+        return phaseTimer;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.metrics;
+
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.logic.permission.PermissionManager;
+import org.terasology.registry.Share;
+
+import java.util.Locale;
+
+/**
+ * Counters and timers of the rail simulation over the last {@link #WINDOW} rail steps, or samples for metrics
+ * recorded as they happen. Counters are always kept; timers cost a clock read per phase and vehicle and are only
+ * taken while timing is enabled.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+@Share(RailMetrics.class)
+public class RailMetrics extends BaseComponentSystem {
+    public static final int WINDOW = 600;
+    private static final int BAR_WIDTH = 40;
+
+    private final RollingHistogram[] histograms = new RollingHistogram[RailMetric.values().length];
+    private final long[] pending = new long[RailMetric.values().length];
+    private boolean timing;
+
+    public RailMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new RollingHistogram(WINDOW);
+        }
+    }
+
+    /**
+     * Adds to a per tick metric for the current rail step.
+     */
+    public void add(RailMetric metric, long amount) {
+        pending[metric.ordinal()] += amount;
+    }
+
+    /**
+     * Records a single value of a metric that is not per tick.
+     */
+    public void record(RailMetric metric, long value) {
+        histograms[metric.ordinal()].record(value);
+    }
+
+    /**
+     * Records the per tick metrics of the rail step that just ended.
+     */
+    public void endTick() {
+        for (RailMetric metric : RailMetric.values()) {
+            if (metric.isPerTick() && (timing || !metric.isPhaseTimer())) {
+                histograms[metric.ordinal()].record(pending[metric.ordinal()]);
+            }
+            pending[metric.ordinal()] = 0;
+        }
+    }
+
+    public RollingHistogram get(RailMetric metric) {
+        return histograms[metric.ordinal()];
+    }
+
+    public boolean isTiming() {
+        return timing;
+    }
+
+    public void setTiming(boolean timing) {
+        this.timing = timing;
+        for (RailMetric metric : RailMetric.values()) {
+            if (metric.isPhaseTimer()) {
+                histograms[metric.ordinal()].clear();
+            }
+        }
+    }
+
+    @Command(shortDescription = "Shows rail simulation metrics",
+            helpText = "Without arguments, lists every metric over the last rail steps. With a metric name, shows its "
+                    + "histogram. 'on' and 'off' switch the phase timers.",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String railMetrics(@CommandParam(value = "metric", required = false) String metricName) {
+        if (metricName == null) {
+            return getSummary();
+        }
+        if ("on".equalsIgnoreCase(metricName) || "off".equalsIgnoreCase(metricName)) {
+            setTiming("on".equalsIgnoreCase(metricName));
+            return "Rail timers " + (timing ? "enabled" : "disabled");
+        }
+        try {
+            return getHistogram(RailMetric.valueOf(metricName.toUpperCase(Locale.ENGLISH)));
+        } catch (IllegalArgumentException e) {
+            return "Unknown metric " + metricName;
+        }
+    }
+
+    private String getSummary() {
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("%-26s %10s %10s %10s %10s %10s%n", "metric", "latest", "mean", "p50", "p99", "max"));
+        for (RailMetric metric : RailMetric.values()) {
+            RollingHistogram histogram = get(metric);
+            result.append(String.format("%-26s %10s %10s %10s %10s %10s%n", metric.name().toLowerCase(Locale.ENGLISH),
+                    format(metric, histogram.getLatest()), format(metric, histogram.getMean()),
+                    format(metric, histogram.getPercentile(50)), format(metric, histogram.getPercentile(99)),
+                    format(metric, histogram.getMax())));
+        }
+        if (!timing) {
+            result.append("Timers are off, enable them with 'railMetrics on'");
+        }
+        return result.toString();
+    }
+
+    private String getHistogram(RailMetric metric) {
+        RollingHistogram histogram = get(metric);
+        int[] buckets = histogram.getBuckets();
+        int highest = 0;
+        int largest = 1;
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] > 0) {
+                highest = i;
+                largest = Math.max(largest, buckets[i]);
+            }
+        }
+        StringBuilder result = new StringBuilder();
+        result.append(metric.name().toLowerCase(Locale.ENGLISH)).append(" over ").append(histogram.getCount())
+                .append(metric.isPerTick() ? " rail steps" : " samples").append(String.format("%n"));
+        for (int i = 0; i <= highest; i++) {
+            long upper = i == 0 ? 0 : (1L << i) - 1;
+            int width = buckets[i] * BAR_WIDTH / largest;
+            result.append(String.format("<= %10s %6d ", format(metric, upper), buckets[i]));
+            for (int j = 0; j < width; j++) {
+                result.append('#');
+            }
+            result.append(String.format("%n"));
+        }
+        return result.toString();
+    }
+
+    private static String format(RailMetric metric, double value) {
+        if (metric.isTime()) {
+            return String.format("%.1fus", value / 1000);
+        }
+        return value == Math.rint(value) ? String.valueOf((long) value) : String.format("%.1f", value);
+    }
+}
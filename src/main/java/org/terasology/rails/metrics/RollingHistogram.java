@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.rails.metrics;
+
+import java.util.Arrays;
+
+/**
+ * The most recent values of a metric, kept in a ring buffer.
+ */
+public class RollingHistogram {
+    private final long[] values;
+    private final long[] sorted;
+    private int next;
+    private int count;
+
+    public RollingHistogram(int window) {
+        values = new long[window];
+        sorted = new long[window];
+    }
+
+    public void record(long value) {
+        values[next] = value;
+        next = (next + 1) % values.length;
+        if (count < values.length) {
+            count++;
+        }
+    }
+
+    public void clear() {
+        next = 0;
+        count = 0;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getLatest() {
+        return count == 0 ? 0 : values[(next + values.length - 1) % values.length];
+    }
+
+    public double getMean() {
+        if (count == 0) {
+            return 0;
+        }
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += values[i];
+        }
+        return (double) total / count;
+    }
+
+    public long getMax() {
+        long max = 0;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        System.arraycopy(values, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        int index = (int) Math.ceil(count * percentile / 100) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * Counts the values into power of two buckets: bucket 0 holds zero, bucket i values from 2^(i-1) to 2^i - 1.
+     */
+    public int[] getBuckets() {
+        int[] buckets = new int[Long.SIZE + 1];
+        for (int i = 0; i < count; i++) {
+            buckets[Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, values[i]))]++;
+        }
+        return buckets;
+    }
+}